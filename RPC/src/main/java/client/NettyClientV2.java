@@ -2,12 +2,18 @@ package client;
 
 import client.client.ChannelProvider;
 import client.client.UnprocessedRequests;
+import client.lb.Impl.ConsistentHashLoadBalancer;
+import client.lb.LoadBalancer;
+import common.config.Handshake;
+import common.config.RpcConfig;
+import common.reqeust.RpcBatchRequest;
 import common.reqeust.RpcRequest;
+import common.util.MethodSignatures;
 import common.util.RpcMessageChecker;
 import server.service.Service;
 import common.config.RpcError;
 import common.config.RpcException;
-import server.registry.Impl.ZkServiceRegistry;
+import server.registry.RegistryFactory;
 import server.registry.ServiceRegistry;
 import common.response.RpcResponse;
 import common.serializer.CommonSerializer;
@@ -16,8 +22,13 @@ import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class NettyClientV2 implements RpcClient{
 
@@ -36,7 +47,8 @@ public class NettyClientV2 implements RpcClient{
     // zooKeeper注册中心
     private ServiceRegistry serviceRegistry;
 
-    private UnprocessedRequests unprocessedRequests;
+    // 批量发送时一帧最多打包的请求数
+    private static final int BATCH_MAX_SIZE = RpcConfig.getInt("rpc.client.batch.maxSize", 128);
 
     // 使用静态代码块初始化Netty客户端
     public NettyClientV2(String host, int port) {
@@ -45,10 +57,17 @@ public class NettyClientV2 implements RpcClient{
     }
 
     public NettyClientV2() {
-        // this.serviceRegistry = new ZkServiceRegistry(new RoundRobinLoadBalancer(), this);
-        this.serviceRegistry = new ZkServiceRegistry(this);
-        this.unprocessedRequests = new UnprocessedRequests();
-    };
+        this(new ConsistentHashLoadBalancer());
+    }
+
+    /**
+     * 指定负载均衡策略，比如按延迟选节点的P2CLoadBalancer
+     * 注册中心按配置rpc.registry选择，默认zookeeper
+     */
+    public NettyClientV2(LoadBalancer loadBalancer) {
+        this.serviceRegistry = RegistryFactory.get().createClientRegistry(loadBalancer);
+        this.serviceRegistry.addProviderListener(ChannelProvider::close);
+    }
 
     @Override
     public Object sendRequest(RpcRequest rpcRequest, CommonSerializer serializer) throws RpcException {
@@ -99,8 +118,6 @@ public class NettyClientV2 implements RpcClient{
     public Object sendRequest1(RpcRequest rpcRequest, CommonSerializer serializer) throws Exception {
         try {
             // 从注册中心拉取到服务地址
-            // TODO 本地缓存 + 获取到服务【列表】实现负载均衡 - getServiceList()
-            // TODO 为了实现节点新增或删除时自动删除缓存，需要在启动时再开一个线程来监听节点的变化
             // 先查看本地缓存的服务列表，如果有就从本地拉取，否则再查询zookeeper
             // getServiceList(rpcRequest.getInter faceName());
 
@@ -133,50 +150,184 @@ public class NettyClientV2 implements RpcClient{
 
     /**
      * 心跳改造后的sendRequest
+     * 选好连接以后，由这个连接的未处理请求表生成请求号并登记future，响应到达或超时时完成
      */
     @Override
     public CompletableFuture<RpcResponse> sendRequest2(RpcRequest rpcRequest, CommonSerializer serializer) {
         CompletableFuture<RpcResponse> resultFuture = new CompletableFuture<>();
         try {
             // 从注册中心拉取到服务地址
-            // TODO 本地缓存 + 获取到服务【列表】实现负载均衡 - getServiceList()
-            // TODO 为了实现节点新增或删除时自动删除缓存，需要在启动时再开一个线程来监听节点的变化
             // 先查看本地缓存的服务列表，如果有就从本地拉取，否则再查询zookeeper
             // getServiceList(rpcRequest.getInter faceName());
 
-            // 将新请求放入未处理完的请求中
-            unprocessedRequests.put(rpcRequest.getRequestId(), resultFuture);
-            logger.info("本次请求Id: {}", rpcRequest.getRequestId());
-
             // 负载均衡
-            InetSocketAddress inetSocketAddress = serviceRegistry.lookupService(rpcRequest.getInterfaceName());
-            // List<InetSocketAddress> inetSocketAddresses = serviceRegistry.lookupService(rpcRequest.getInterfaceName());
-            Channel channel = ChannelProvider.get(inetSocketAddress, serializer);
-            // 或者Channel != null
-            if (channel.isActive()) {
-                logger.info("客户端已连接到了服务器 {}:{}", inetSocketAddress.getHostName(), inetSocketAddress.getPort());
-                channel.writeAndFlush(rpcRequest).addListener((ChannelFutureListener)future1 -> {
-                    if (future1.isSuccess()) {
-                        logger.info(String.format("客户端发送消息: %s", rpcRequest.toString()));
-                    } else {
-                        future1.channel().close();
-                        resultFuture.completeExceptionally(future1.cause());
-                        logger.error("发送消息时发生错误:", future1.cause()); // cause为异常原因
-                    }
-                });
-            } else {
-                System.exit(0);
+            InetSocketAddress inetSocketAddress = serviceRegistry.lookupService(rpcRequest);
+            if (inetSocketAddress == null) {
+                resultFuture.completeExceptionally(new RpcException(RpcError.SERVICE_NOT_FOUND, rpcRequest.getInterfaceName()));
+                return resultFuture;
             }
+            // 异步拿连接，连接建好以后在EventLoop线程上发送，调用线程不等待建连
+            ChannelProvider.getAsync(inetSocketAddress, serializer).whenComplete((channel, e) -> {
+                if (e != null) {
+                    resultFuture.completeExceptionally(e);
+                } else if (!channel.isActive()) {
+                    resultFuture.completeExceptionally(new RpcException(RpcError.CLIENT_CONNECT_SERVER_FAILURE,
+                            String.valueOf(inetSocketAddress)));
+                } else {
+                    send(channel, rpcRequest, resultFuture);
+                }
+            });
         } catch (Exception e) {
-            // 将请求从请求集合中移除
-            unprocessedRequests.remove(rpcRequest.getRequestId());
             logger.error("发送请求时产生了错误: ", e);
-            //interrupt()这里作用是给受阻塞的当前线程发出一个中断信号，让当前线程退出阻塞状态，好继续执行然后结束
-            Thread.currentThread().interrupt();
+            resultFuture.completeExceptionally(e);
         }
         return resultFuture;
     }
 
+    private void send(Channel channel, RpcRequest rpcRequest, CompletableFuture<RpcResponse> resultFuture) {
+        logger.info("客户端已连接到了服务器 {}", channel.remoteAddress());
+        prepare(channel, rpcRequest, resultFuture);
+        channel.writeAndFlush(rpcRequest).addListener(sent(Collections.singletonList(rpcRequest),
+                Collections.singletonList(resultFuture)));
+    }
+
+    /**
+     * 批量发送：按负载均衡给每个请求选好地址，发往同一个地址的请求在一个连接上打包成一帧
+     * 服务端在握手时声明支持批量帧的编码成一个BATCH帧，否则逐个写进去最后只flush一次
+     * 服务端拆开后并行执行，响应逐个返回；返回的future和请求一一对应，各自在响应到达时完成
+     */
+    public List<CompletableFuture<RpcResponse>> sendBatch(List<RpcRequest> rpcRequests, CommonSerializer serializer) {
+        List<CompletableFuture<RpcResponse>> resultFutures = new ArrayList<>(rpcRequests.size());
+        Map<InetSocketAddress, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < rpcRequests.size(); i++) {
+            CompletableFuture<RpcResponse> resultFuture = new CompletableFuture<>();
+            resultFutures.add(resultFuture);
+            RpcRequest rpcRequest = rpcRequests.get(i);
+            try {
+                InetSocketAddress inetSocketAddress = serviceRegistry.lookupService(rpcRequest);
+                if (inetSocketAddress == null) {
+                    resultFuture.completeExceptionally(new RpcException(RpcError.SERVICE_NOT_FOUND, rpcRequest.getInterfaceName()));
+                } else {
+                    groups.computeIfAbsent(inetSocketAddress, k -> new ArrayList<>()).add(i);
+                }
+            } catch (Exception e) {
+                logger.error("发送请求时产生了错误: ", e);
+                resultFuture.completeExceptionally(e);
+            }
+        }
+        groups.forEach((inetSocketAddress, indexes) -> {
+            // 一帧最多装BATCH_MAX_SIZE个请求，避免超过服务端的帧长度上限
+            for (int from = 0; from < indexes.size(); from += BATCH_MAX_SIZE) {
+                List<RpcRequest> requests = new ArrayList<>();
+                List<CompletableFuture<RpcResponse>> futures = new ArrayList<>();
+                for (int i : indexes.subList(from, Math.min(indexes.size(), from + BATCH_MAX_SIZE))) {
+                    requests.add(rpcRequests.get(i));
+                    futures.add(resultFutures.get(i));
+                }
+                ChannelProvider.getAsync(inetSocketAddress, serializer).whenComplete((channel, e) -> {
+                    if (e != null || !channel.isActive()) {
+                        Throwable cause = e != null ? e
+                                : new RpcException(RpcError.CLIENT_CONNECT_SERVER_FAILURE, String.valueOf(inetSocketAddress));
+                        futures.forEach(future -> future.completeExceptionally(cause));
+                    } else {
+                        sendBatch(channel, requests, futures);
+                    }
+                });
+            }
+        });
+        return resultFutures;
+    }
+
+    private void sendBatch(Channel channel, List<RpcRequest> rpcRequests, List<CompletableFuture<RpcResponse>> resultFutures) {
+        for (int i = 0; i < rpcRequests.size(); i++) {
+            prepare(channel, rpcRequests.get(i), resultFutures.get(i));
+        }
+        if (Boolean.TRUE.equals(channel.attr(Handshake.BATCH_SUPPORTED).get())) {
+            channel.writeAndFlush(new RpcBatchRequest(rpcRequests)).addListener(sent(rpcRequests, resultFutures));
+            return;
+        }
+        // 老版本的服务端不认识批量帧，逐个写，最后一起flush
+        for (int i = 0; i < rpcRequests.size(); i++) {
+            channel.write(rpcRequests.get(i)).addListener(sent(Collections.singletonList(rpcRequests.get(i)),
+                    Collections.singletonList(resultFutures.get(i))));
+        }
+        channel.flush();
+    }
+
+    /**
+     * 生成请求号、换成方法编号，需要等响应的请求登记到这个连接的未处理请求表
+     */
+    private static void prepare(Channel channel, RpcRequest rpcRequest, CompletableFuture<RpcResponse> resultFuture) {
+        // 将新请求放入这个连接未处理完的请求中
+        UnprocessedRequests unprocessedRequests = channel.attr(UnprocessedRequests.KEY).get();
+        long requestId = unprocessedRequests.nextSequenceId();
+        rpcRequest.setSequenceId(requestId);
+        // 服务端下发过方法编号表的连接，按编号调用，请求里不再带接口名、方法名和参数类型
+        Map<String, Integer> methodIds = channel.attr(Handshake.METHOD_IDS).get();
+        if (methodIds != null) {
+            String methodKey = rpcRequest.getMethodKey() != null ? rpcRequest.getMethodKey()
+                    : rpcRequest.getInterfaceName() + "#" + MethodSignatures.key(rpcRequest.getMethodName(), rpcRequest.getParamTypes());
+            Integer methodId = methodIds.get(methodKey);
+            rpcRequest.setMethodId(methodId == null ? 0 : methodId);
+        }
+        // 单向调用不等响应，写出去就算完成，不占未处理请求表
+        if (!rpcRequest.isOneway()) {
+            unprocessedRequests.put(requestId, resultFuture, remainingMillis(rpcRequest));
+        }
+        logger.info("本次请求Id: {}", requestId);
+    }
+
+    /**
+     * 写完以后：单向调用到此完成；写失败时把还在等响应的请求移出未处理请求表并失败，关闭连接
+     */
+    private static ChannelFutureListener sent(List<RpcRequest> rpcRequests, List<CompletableFuture<RpcResponse>> resultFutures) {
+        return future1 -> {
+            if (!future1.isSuccess()) {
+                future1.channel().close();
+                logger.error("发送消息时发生错误:", future1.cause()); // cause为异常原因
+            }
+            UnprocessedRequests unprocessedRequests = future1.channel().attr(UnprocessedRequests.KEY).get();
+            for (int i = 0; i < rpcRequests.size(); i++) {
+                RpcRequest rpcRequest = rpcRequests.get(i);
+                if (future1.isSuccess()) {
+                    logger.info(String.format("客户端发送消息: %s", rpcRequest.toString()));
+                    if (rpcRequest.isOneway()) {
+                        resultFutures.get(i).complete(RpcResponse.success(null, rpcRequest));
+                    }
+                } else {
+                    // 将请求从请求集合中移除
+                    if (!rpcRequest.isOneway()) {
+                        unprocessedRequests.remove(rpcRequest.getSequenceId());
+                    }
+                    resultFutures.get(i).completeExceptionally(future1.cause());
+                }
+            }
+        };
+    }
+
+    /**
+     * 预热：从注册中心查出服务的所有地址，提前建好连接，第一次调用不用再等TCP握手
+     */
+    public void warmUp(String serviceName, CommonSerializer serializer) {
+        if (serviceRegistry == null) {
+            return;
+        }
+        List<InetSocketAddress> addresses = serviceRegistry.lookupAllServices(serviceName);
+        if (addresses != null) {
+            ChannelProvider.warmUp(addresses, serializer);
+        }
+    }
+
+    /**
+     * 请求在未处理请求表里最多等多久，带截止时间的按剩余时间算，已经过期的也至少登记1ms，交给时间轮去失败
+     */
+    private static long remainingMillis(RpcRequest rpcRequest) {
+        if (rpcRequest.getDeadline() == 0) {
+            return UnprocessedRequests.DEFAULT_TIMEOUT_MILLIS;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(rpcRequest.getDeadline() - System.nanoTime()));
+    }
+
     @Override
     public Object sendRequest(RpcRequest rpcRequest, String host, int port) {
         return null;
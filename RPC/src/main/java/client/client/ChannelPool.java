@@ -0,0 +1,210 @@
+package client.client;
+
+import common.config.RpcConfig;
+import common.config.RpcError;
+import common.config.RpcException;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一个服务端地址(+序列化器)的连接池
+ * 每次发请求时挑未处理请求最少的连接，不可写的连接(发送缓冲区积压)排在最后
+ * 最忙的连接都积压到一定程度并且没到上限时，异步再建一个连接，本次请求先用现有的
+ * 建连全程异步，失败按退避间隔重试
+ * 超过最小连接数、又空闲了一段时间的连接会被回收
+ */
+public class ChannelPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelPool.class);
+
+    // 最少保留的连接数
+    static final int MIN_CONNECTIONS = RpcConfig.getInt("rpc.client.pool.minConnections", 1);
+
+    // 每个地址最多建立的连接数
+    static final int MAX_CONNECTIONS = RpcConfig.getInt("rpc.client.pool.maxConnections", 4);
+
+    // 最空闲的连接上未处理请求也达到这个数时，扩容一个连接
+    static final int GROW_THRESHOLD = RpcConfig.getInt("rpc.client.pool.growThreshold", 64);
+
+    // 连接空闲多久以后回收，单位毫秒
+    static final long IDLE_TIMEOUT_MILLIS = RpcConfig.getLong("rpc.client.pool.idleTimeout", 60_000);
+
+    // 连接失败的重试次数
+    private static final int MAX_RETRY_COUNT = RpcConfig.getInt("rpc.client.connect.retries", 3);
+
+    // 第一次重连前等待的时间，之后每次翻倍，单位毫秒
+    private static final long RETRY_BACKOFF_MILLIS = RpcConfig.getLong("rpc.client.connect.backoff", 200);
+
+    // 不可写的连接按多积压这么多请求来算
+    private static final int UNWRITABLE_PENALTY = 1 << 20;
+
+    // 连接最近一次被选中的时间，ChannelProvider初始化连接时设置
+    static final AttributeKey<AtomicLong> LAST_USED = AttributeKey.valueOf("lastUsed");
+
+    private final InetSocketAddress address;
+
+    private final Bootstrap bootstrap;
+
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+
+    // 正在进行的建连，同一时间每个池只有一个，和已有的连接一起算上限
+    private final AtomicReference<CompletableFuture<Channel>> connecting = new AtomicReference<>();
+
+    public ChannelPool(InetSocketAddress address, Bootstrap bootstrap) {
+        this.address = address;
+        this.bootstrap = bootstrap;
+    }
+
+    /**
+     * 挑一个连接来发请求，不阻塞调用线程
+     * 池里没有可用连接时返回正在进行的那次建连，同一个地址的并发调用方共用它，不会各自去连
+     */
+    public CompletableFuture<Channel> acquire() {
+        Channel best = null;
+        int bestPending = Integer.MAX_VALUE;
+        for (Channel channel : channels) {
+            if (!channel.isActive()) {
+                continue;
+            }
+            int pending = pending(channel);
+            if (!channel.isWritable()) {
+                pending += UNWRITABLE_PENALTY;
+            }
+            if (pending < bestPending) {
+                best = channel;
+                bestPending = pending;
+            }
+        }
+        if (best == null) {
+            return connect().thenApply(ChannelPool::touch);
+        }
+        if (bestPending >= GROW_THRESHOLD && channels.size() + (connecting.get() == null ? 0 : 1) < MAX_CONNECTIONS) {
+            connect();
+        }
+        return CompletableFuture.completedFuture(touch(best));
+    }
+
+    /**
+     * 预热：提前建好最小数量的连接，第一次调用不用再等TCP握手
+     */
+    public void warmUp() {
+        if (channels.size() < MIN_CONNECTIONS) {
+            connect().thenRun(this::warmUp);
+        }
+    }
+
+    private static Channel touch(Channel channel) {
+        channel.attr(LAST_USED).get().lazySet(System.currentTimeMillis());
+        return channel;
+    }
+
+    /**
+     * 建立一个新连接，已经有一次建连在进行时直接返回它
+     * 连上以后放进池里，连接关闭时自动移出
+     */
+    private CompletableFuture<Channel> connect() {
+        for (;;) {
+            CompletableFuture<Channel> pending = connecting.get();
+            if (pending != null) {
+                return pending;
+            }
+            CompletableFuture<Channel> promise = new CompletableFuture<>();
+            if (connecting.compareAndSet(null, promise)) {
+                promise.whenComplete((channel, e) -> connecting.compareAndSet(promise, null));
+                connect(promise, MAX_RETRY_COUNT);
+                return promise;
+            }
+        }
+    }
+
+    /**
+     * 连接重试机制
+     * 连接失败时在EventLoop上定时重连，直到重试次数为0
+     * 注意delay设计为递增的时间，如果第二次客户端没有连接成功，则认为服务器还需要多一点时间来准备
+     */
+    private void connect(CompletableFuture<Channel> promise, int retry) {
+        bootstrap.connect(address).addListener((ChannelFutureListener) future -> {
+            // 如果连接成功，则结束重试
+            if (future.isSuccess()) {
+                Channel channel = future.channel();
+                channels.add(channel);
+                channel.closeFuture().addListener(f -> channels.remove(channel));
+                logger.info("客户端连接成功 {}, 当前连接数: {}", address, channels.size());
+                promise.complete(channel);
+                return;
+            }
+            // 如果重试次数为0，则放弃
+            if (retry == 0) {
+                logger.error("客户端连接 {} 失败，重试次数已用完, 放弃连接！", address, future.cause());
+                promise.completeExceptionally(new RpcException(RpcError.CLIENT_CONNECT_SERVER_FAILURE, String.valueOf(address)));
+                return;
+            }
+            // 查看目前是第几次重连，两次重试的间隔翻倍
+            int order = MAX_RETRY_COUNT - retry + 1;
+            long delay = RETRY_BACKOFF_MILLIS << (order - 1);
+            logger.warn("连接 {} 失败，{}ms后第{}次重连...", address, delay, order);
+            bootstrap.config().group().schedule(() -> connect(promise, retry - 1), delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * 回收超过最小连接数部分里空闲太久的连接
+     * 先移出池子不再分配新请求，等已经发出的请求都响应完再关闭
+     */
+    public void reclaimIdle() {
+        long now = System.currentTimeMillis();
+        for (Channel channel : channels) {
+            if (channels.size() <= MIN_CONNECTIONS) {
+                return;
+            }
+            if (pending(channel) == 0 && now - channel.attr(LAST_USED).get().get() > IDLE_TIMEOUT_MILLIS
+                    && channels.remove(channel)) {
+                logger.info("回收空闲连接 {}", channel);
+                closeWhenDrained(channel);
+            }
+        }
+    }
+
+    /**
+     * 关闭池里所有连接，不再接受新请求，已经发出的请求等响应完再关
+     */
+    public void close() {
+        for (Channel channel : channels) {
+            if (channels.remove(channel)) {
+                closeWhenDrained(channel);
+            }
+        }
+    }
+
+    private static void closeWhenDrained(Channel channel) {
+        if (pending(channel) == 0) {
+            channel.close();
+        } else {
+            channel.eventLoop().schedule(() -> closeWhenDrained(channel), 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static int pending(Channel channel) {
+        return channel.attr(UnprocessedRequests.KEY).get().size();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public int size() {
+        return channels.size();
+    }
+}
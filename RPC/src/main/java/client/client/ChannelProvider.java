@@ -1,27 +1,29 @@
 package client.client;
 
 import client.handler.NettyClientHandler;
+import client.lb.EndpointStats;
 import common.config.CommonDecoder;
 import common.config.CommonEncoder;
-import common.config.RpcError;
-import common.config.RpcException;
+import common.config.RpcConfig;
 import common.serializer.CommonSerializer;
+import common.serializer.SerializerCode;
+import common.transport.Transport;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.Date;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 改造Netty Client，实现客户端连接失败重试的机制
+ * 获取连接全程异步，返回CompletableFuture<Channel>，连接失败的重试由ChannelPool在EventLoop上定时进行
  */
 public class ChannelProvider {
 
@@ -29,119 +31,99 @@ public class ChannelProvider {
     private static EventLoopGroup eventLoopGroup;
     private static Bootstrap bootstrap = initializeBootstrap();
 
-    // 连接channel被封装在map里
-    private static Map<String, Channel> channels = new ConcurrentHashMap<>();
+    // 是否使用握手获取的方法编号，只有Kryo下生效：参数数组按类型写出，不需要再附带参数类型
+    private static final boolean METHOD_IDS = RpcConfig.getBoolean("rpc.client.methodIds", true);
 
-    // 连接重试次数
-    private static final int MAX_RETRY_COUNT = 5;
-    private static Channel channel = null;
+    // 每个地址+序列化器一个连接池
+    private static Map<String, ChannelPool> pools = new ConcurrentHashMap<>();
+
+    static {
+        // 定期回收空闲连接
+        long period = Math.max(1000, ChannelPool.IDLE_TIMEOUT_MILLIS / 2);
+        eventLoopGroup.scheduleAtFixedRate(() -> pools.values().forEach(ChannelPool::reclaimIdle),
+                period, period, TimeUnit.MILLISECONDS);
+    }
 
     private static Bootstrap initializeBootstrap() {
-        eventLoopGroup = new NioEventLoopGroup();
+        eventLoopGroup = Transport.newEventLoopGroup(0);
         Bootstrap bootstrap = new Bootstrap();
         bootstrap.group(eventLoopGroup)
-                .channel(NioSocketChannel.class)
+                .channel(Transport.socketChannelClass())
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.TCP_NODELAY, true);
-        return bootstrap;
+        return Transport.configure(bootstrap);
     }
 
     /**
-     * 返回连接以后的channel对象
+     * 异步获取一个可用的channel对象，每个地址+序列化器对应一个连接池，由连接池挑负载最轻的连接
      * 并实现心跳机制
      *      - 设定每5秒进行一次写检测，如果5秒内write()方法未被调用则触发一次userEventTrigger()方法
      *      - 该方法在NettyClientHandler类中实现
      */
-    public static Channel get(InetSocketAddress inetSocketAddress, CommonSerializer serializer) {
-        String key = inetSocketAddress.toString() + serializer.getCode();
-        if (channels.containsKey(key)) {
-            Channel channel = channels.get(key);
-            if (channel != null && channel.isActive()) {
-                return channel;
-            } else {
-                channels.remove(key);
-            }
-        }
-        bootstrap.handler(new ChannelInitializer<SocketChannel>() {
+    public static CompletableFuture<Channel> getAsync(InetSocketAddress inetSocketAddress, CommonSerializer serializer) {
+        return pool(inetSocketAddress, serializer).acquire();
+    }
 
-            @Override
-            protected void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addLast(new CommonEncoder(serializer))
-                        .addLast(new IdleStateHandler(0, 5, 0, TimeUnit.SECONDS))
-                        .addLast(new CommonDecoder())
-                        .addLast(new NettyClientHandler());
-            }
-        });
-        // 设置计数器为1
-        // 因为增加了连接重试的机制，并不会返回ChannelFuture，因此不能简单的使用sync()
-        // CountDownLatch countDownLatch = new CountDownLatch(1);
-        Channel channel = null;
+    /**
+     * 同步获取channel，给还在同步等待的老接口用，连接失败返回null
+     */
+    public static Channel get(InetSocketAddress inetSocketAddress, CommonSerializer serializer) {
         try {
-            // 这里是异步的，主线程执行connect方法这里，具体方法体的执行是由另一个异步线程执行，因此才需要sync()
-            // connect(bootstrap, inetSocketAddress, countDownLatch);
-            channel = connect(bootstrap,inetSocketAddress);
-
-            // 等待连接服务器完毕
-            // countDownLatch.await();
+            return getAsync(inetSocketAddress, serializer).get();
         } catch (InterruptedException | ExecutionException e) {
             logger.error("获取channel时发生错误", e);
             return null;
         }
-        // 把连接放入map中
-        channels.put(key, channel);
-        return channel;
     }
 
-    private static void connect(Bootstrap bootstrap, InetSocketAddress inetSocketAddress, CountDownLatch countDownLatch) {
-        connect (bootstrap, inetSocketAddress, MAX_RETRY_COUNT, countDownLatch);
-    }
-
-    private static Channel connect(Bootstrap bootstrap, InetSocketAddress inetSocketAddress) throws ExecutionException, InterruptedException {
-        CompletableFuture<Channel> completableFuture = new CompletableFuture<>();
-        bootstrap.connect(inetSocketAddress).addListener((ChannelFutureListener)future -> {
-           if (future.isSuccess()) {
-               logger.info("客户端连接成功");
-               // 手动调用complete完成这个任务，并使得get方法能获取到这个任务返回值
-               completableFuture.complete(future.channel());
-           }  else {
-               throw new IllegalStateException();
-           }
-        });
-        return completableFuture.get();
+    /**
+     * 预热：对注册中心里查到的服务地址提前建好连接，不等待结果
+     */
+    public static void warmUp(Collection<InetSocketAddress> addresses, CommonSerializer serializer) {
+        for (InetSocketAddress address : addresses) {
+            pool(address, serializer).warmUp();
+        }
     }
 
     /**
-     * 连接重试机制
-     * 如果第一次connect失败，则递归执行connect直到重试次数为0
-     * 注意delay设计为递增的时间，如果第二次客户端没有连接成功，则认为服务器还需要多一点时间来准备
+     * 服务提供者下线，关闭到它的所有连接池，已经发出的请求等响应完再关
      */
-    private static void connect(Bootstrap bootstrap, InetSocketAddress inetSocketAddress, int retry,
-                                CountDownLatch countDownLatch) {
-        bootstrap.connect(inetSocketAddress).addListener( (ChannelFutureListener) future -> {
-            // 如果连接成功，则结束递归
-            if (future.isSuccess()) {
-                logger.info("客户端连接成功");
-                channel = future.channel();
-                countDownLatch.countDown();
-                return;
+    public static void close(InetSocketAddress inetSocketAddress) {
+        pools.values().removeIf(pool -> {
+            if (pool.getAddress().equals(inetSocketAddress)) {
+                pool.close();
+                return true;
             }
-            // 如果重试次数为0，则结束递归
-            if (retry == 0) {
-                logger.error("客户端连接失败，重试次数已用完, 放弃连接！");
-                countDownLatch.countDown();
-                throw new RpcException(RpcError.CLIENT_CONNECT_SERVER_FAILURE);
-            }
-            // 查看目前是第几次连接
-            int order = MAX_RETRY_COUNT - retry + 1;    // 1 -> 2 -> 3 -> 4 -> 5
-            // 两次重试时间的间隔，左移相当于delay * (2^order) 比如 2 -> 5 -> 12 -> 30
-            int delay = 1 << order;
-            logger.error("{}:连接失败，第{}次重连...", new Date(), order);
-            // 从config中取出EventLoopGroup，其中的schedule方法可以穿一个定时任务
-            // 递归
-            bootstrap.config().group().schedule(() -> {
-                connect(bootstrap,inetSocketAddress,retry - 1, countDownLatch );
-            }, delay, TimeUnit.SECONDS);
+            return false;
         });
+        EndpointStats.remove(inetSocketAddress);
+    }
+
+    private static ChannelPool pool(InetSocketAddress inetSocketAddress, CommonSerializer serializer) {
+        String key = inetSocketAddress.toString() + serializer.getCode();
+        // 每个连接池用自己的bootstrap副本，不同序列化器的handler互不影响
+        return pools.computeIfAbsent(key,
+                k -> new ChannelPool(inetSocketAddress, bootstrap.clone().handler(initializer(inetSocketAddress, serializer))));
+    }
+
+    private static ChannelInitializer<SocketChannel> initializer(InetSocketAddress address, CommonSerializer serializer) {
+        boolean methodIds = METHOD_IDS && serializer.getCode() == SerializerCode.KRYO.getCode();
+        return new ChannelInitializer<SocketChannel>() {
+
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                // 每个连接有自己的未处理请求表，发送时从channel属性里取，同一地址的负载统计共用一份
+                UnprocessedRequests unprocessedRequests = new UnprocessedRequests(EndpointStats.of(address));
+                ch.attr(UnprocessedRequests.KEY).set(unprocessedRequests);
+                ch.attr(ChannelPool.LAST_USED).set(new AtomicLong(System.currentTimeMillis()));
+                ch.pipeline().addLast(new CommonEncoder(serializer))
+                        .addLast(new IdleStateHandler(0, 5, 0, TimeUnit.SECONDS))
+                        .addLast(new CommonDecoder())
+                        .addLast(new NettyClientHandler(unprocessedRequests, methodIds));
+                // 调用线程各自发出的请求合并flush
+                Transport.consolidateFlushes(ch.pipeline());
+            }
+        };
     }
 }
@@ -1,19 +1,35 @@
 package client.client;
 
 import client.NettyClientV2;
+import common.annotation.Compress;
+import common.annotation.Oneway;
+import common.annotation.Timeout;
+import common.config.RpcConfig;
+import common.config.RpcError;
+import common.config.RpcException;
+import common.config.SerializeException;
 import common.reqeust.RpcRequest;
 import common.response.RpcResponse;
 import client.RpcClient;
+import common.serializer.CommonSerializer;
 import common.serializer.KryoSerializer;
+import common.util.MethodSignatures;
+import common.util.RpcMessageChecker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
-import java.util.UUID;
+import java.lang.reflect.Type;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 // RPC客户端的实现，动态代理
 // 客户端没有接口的实现类，那么使用JDK动态代理来生成实例
@@ -26,6 +42,26 @@ public class RpcClientProxy implements InvocationHandler {
     private int port;
     private RpcClient rpcClient;
 
+    // 接口和方法上都没有@Timeout时使用的超时时间，单位毫秒
+    private long timeoutMillis = UnprocessedRequests.DEFAULT_TIMEOUT_MILLIS;
+
+    // 每个方法最终生效的超时时间，第一次调用时解析注解
+    private final Map<Method, Long> timeouts = new ConcurrentHashMap<>();
+
+    // 请求使用的序列化器，按配置rpc.client.serializer的编号从注册表取单例，服务端按同一个序列化器回写
+    private static final CommonSerializer serializer = CommonSerializer.getByCode(
+            RpcConfig.getInt("rpc.client.serializer", CommonSerializer.DEFAULT_SERIALIZER));
+
+    // 没有标注@Oneway的void方法是否也按单向调用处理
+    private static final boolean ONEWAY_VOID = RpcConfig.getBoolean("rpc.client.onewayVoid", false);
+
+    // 每个方法是否单向调用，第一次调用时解析注解
+    private final Map<Method, Boolean> oneways = new ConcurrentHashMap<>();
+
+    // 代理的接口 -> 方法 -> 方法编号表里的键，第一次调用时生成
+    // 继承来的方法在不同的子接口下是不同的键，所以要按代理的接口分开
+    private final Map<Class<?>, Map<Method, String>> methodKeys = new ConcurrentHashMap<>();
+
     public RpcClientProxy(String host, int port) {
         this.host = host;
         this.port = port;
@@ -35,49 +71,142 @@ public class RpcClientProxy implements InvocationHandler {
         this.rpcClient = rpcClient;
     }
 
+    public RpcClientProxy(RpcClient rpcClient, long timeoutMillis) {
+        this.rpcClient = rpcClient;
+        this.timeoutMillis = timeoutMillis;
+    }
+
     // 抑制编译器产生警告
     // 生成代理对象
     @SuppressWarnings("unchecked")
+    // 生成代理时顺便预热到服务提供者的连接
     public <T> T getProxy (Class<T> clazz) {
+        // 和服务端一样把接口用到的类注册到Kryo
+        KryoSerializer.registerServiceClasses(clazz);
+        if (rpcClient instanceof NettyClientV2) {
+            ((NettyClientV2) rpcClient).warmUp(clazz.getCanonicalName(), serializer);
+        }
+        // 记住代理的接口：服务端按注册的接口的规范名找服务和方法，不能用方法的声明类(继承来的方法)或者getName(嵌套接口)
         return (T) Proxy.newProxyInstance(clazz.getClassLoader(),
                 new Class<?>[]{clazz},
-                this);
+                (proxy, method, args) -> invoke(clazz, method, args));
     }
 
     // 重写的invocation handler中的invoke方法
     // 可以看到，当调用动态代理对象上的hello方法时，底层就是执行了invoke方法
     // 使得这个动态代理对象【替我们】向RPC服务端发出了请求，并拿到了RPC响应对象
-    @SuppressWarnings("unchecked")
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        logger.info("调用方法: {}#{}", method.getDeclaringClass().getName(), method.getName());
-        // 建造者模式构建对象
-        // RpcRequest rpcRequest = RpcRequest.builder()
-        //         .interfaceName(method.getDeclaringClass().getName())
-        //         .methodName(method.getName())
-        //         .parameters(args)
-        //         .paramTypes(method.getParameterTypes())
-        //         .build();
+        return invoke(proxy.getClass().getInterfaces()[0], method, args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object invoke(Class<?> clazz, Method method, Object[] args) throws Throwable {
+        String interfaceName = clazz.getCanonicalName();
+        logger.info("调用方法: {}#{}", interfaceName, method.getName());
         // RpcClient rpcClient = new NettyClient(); 构造器已经弄好了，别new新的，没有port和hostname
         // return ((RpcResponse) rpcClient.sendRequest(rpcRequest)).getData();
 
-        // 请求号初始化为一个UUID
-        RpcRequest rpcRequest = new RpcRequest(UUID.randomUUID().toString(), method.getDeclaringClass().getName(),
-                method.getName(), args, method.getParameterTypes(), false);
+        // 建造者模式构建对象
+        // 请求号等选好连接后由连接自己的计数器生成，字符串请求号只在按V1协议发送时才由编码器补上
+        // 服务接口上标注了@Compress的，请求体超过阈值时按指定算法压缩
+        // 截止时间从这里开始算，随请求传给服务端，服务端排队超过截止时间的请求不再执行
+        Compress compress = method.getDeclaringClass().getAnnotation(Compress.class);
+        long timeout = timeoutOf(method);
+        RpcRequest rpcRequest = RpcRequest.builder()
+                .interfaceName(interfaceName)
+                .methodName(method.getName())
+                .parameters(args)
+                .paramTypes(method.getParameterTypes())
+                .heartBeat(false)
+                .compressType(compress == null ? null : compress.value())
+                .deadline((System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)) | 1)
+                .build();
+        rpcRequest.setMethodKey(methodKeys.computeIfAbsent(clazz, c -> new ConcurrentHashMap<>()).computeIfAbsent(method,
+                m -> interfaceName + "#" + MethodSignatures.key(m.getName(), m.getParameterTypes())));
+        rpcRequest.setOneway(onewayOf(method));
         // return rpcClient.sendRequest(rpcRequest);
         Object result = null;
         if (rpcClient instanceof NettyClientV2) {
             // 异步获取调用结果
             CompletableFuture<RpcResponse> completableFuture = (CompletableFuture<RpcResponse>) rpcClient
-                    .sendRequest2(rpcRequest,new KryoSerializer());
+                    .sendRequest2(rpcRequest, serializer);
+            // 接口方法本身返回CompletableFuture的，直接把结果future交给调用方，不阻塞当前线程
+            if (CompletableFuture.class.isAssignableFrom(method.getReturnType())) {
+                return asyncResult(rpcRequest, completableFuture, futureTypeOf(method));
+            }
             try {
-                result = completableFuture.get().getData();
-            } catch (InterruptedException | ExecutionException e) {
+                // 未处理请求表到截止时间会让future失败，这里再兜一层，防止请求还没登记就卡住
+                RpcResponse rpcResponse = completableFuture.get(timeout, TimeUnit.MILLISECONDS);
+                // 服务端返回失败(比如线程池已满的BUSY)时按调用失败处理
+                RpcMessageChecker.check(rpcRequest, rpcResponse);
+                // 响应按请求的序列化器编码，JSON一类的数据要按返回类型转换
+                result = serializer.convert(rpcResponse.getData(), method.getGenericReturnType());
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
                 logger.error("方法调用请求发送失败", e);
                 return null;
+            } catch (RpcException | SerializeException e) {
+                logger.error("方法调用失败", e);
+                return null;
             }
         }
         return result;
         // return rpcClient.sendRequest1(rpcRequest,new KryoSerializer());
     }
+
+    /**
+     * 响应到达时完成返回给调用方的future，不占用任何线程
+     * 失败统一转换成RpcException：调用失败的响应、超时、连接断开等
+     * 注意回调运行在Netty的EventLoop线程上，调用方不要在回调里做阻塞操作
+     */
+    private static CompletableFuture<Object> asyncResult(RpcRequest rpcRequest, CompletableFuture<RpcResponse> responseFuture,
+                                                         Type resultType) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        responseFuture.whenComplete((rpcResponse, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                result.completeExceptionally(cause instanceof RpcException ? cause
+                        : new RpcException(RpcError.SERVICE_INVOCATION_FAILURE, String.valueOf(cause)));
+                return;
+            }
+            try {
+                RpcMessageChecker.check(rpcRequest, rpcResponse);
+                result.complete(serializer.convert(rpcResponse.getData(), resultType));
+            } catch (RpcException ex) {
+                result.completeExceptionally(ex);
+            } catch (SerializeException ex) {
+                result.completeExceptionally(new RpcException(RpcError.SERVICE_INVOCATION_FAILURE, ex.getMessage()));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * CompletableFuture<T>里的T，没写泛型参数的按Object处理
+     */
+    private static Type futureTypeOf(Method method) {
+        Type type = method.getGenericReturnType();
+        return type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0] : Object.class;
+    }
+
+    /**
+     * 只有返回void的方法才能单向调用：标注了@Oneway(方法或接口上)，或者打开了rpc.client.onewayVoid
+     */
+    private boolean onewayOf(Method method) {
+        return oneways.computeIfAbsent(method, m -> m.getReturnType() == void.class && (ONEWAY_VOID
+                || m.isAnnotationPresent(Oneway.class) || m.getDeclaringClass().isAnnotationPresent(Oneway.class)));
+    }
+
+    /**
+     * 方法上的@Timeout优先，其次是接口上的，都没有就用创建代理时指定的
+     */
+    private long timeoutOf(Method method) {
+        return timeouts.computeIfAbsent(method, m -> {
+            Timeout timeout = m.getAnnotation(Timeout.class);
+            if (timeout == null) {
+                timeout = m.getDeclaringClass().getAnnotation(Timeout.class);
+            }
+            return timeout == null ? timeoutMillis : timeout.value();
+        });
+    }
 }
@@ -1,35 +1,242 @@
 package client.client;
 
+import client.lb.EndpointStats;
+import common.config.RpcConfig;
+import common.config.RpcError;
+import common.config.RpcException;
 import common.response.RpcResponse;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * 未处理完的请求，每个连接一张表，挂在channel的属性上
+ * 请求号由每个连接自己的计数器生成，是连续的long，所以直接按 请求号 & mask 放进一个环形数组，放入和取出都是一次CAS，不加锁也不装箱
+ * 环上对应的槽位还被更早的请求占着时（说明那个请求很久没有响应），放到溢出map里兜底
+ * 超时由HashedWheelTimer处理，连接关闭时表里剩下的请求全部失败
+ * 请求的发出和结束同时计入对端地址的EndpointStats，给按延迟选节点的负载均衡用
+ */
 public class UnprocessedRequests {
 
-    private static ConcurrentHashMap<String , CompletableFuture<RpcResponse>>
-            unprrocessedRequests = new ConcurrentHashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(UnprocessedRequests.class);
 
-    public void put(String requestId, CompletableFuture<RpcResponse> future) {
-        unprrocessedRequests.put(requestId, future);
+    public static final AttributeKey<UnprocessedRequests> KEY = AttributeKey.valueOf("unprocessedRequests");
+
+    // 环形数组的大小，会向上取整成2的幂
+    private static final int CAPACITY = RpcConfig.getInt("rpc.client.inFlightCapacity", 4096);
+
+    // 没有指定超时时间的请求，默认等待多久
+    public static final long DEFAULT_TIMEOUT_MILLIS = RpcConfig.getLong("rpc.client.requestTimeout", 30_000);
+
+    // 所有连接共用一个时间轮，精度10ms
+    private static final Timer TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("rpc-request-timeout", true), 10, TimeUnit.MILLISECONDS, 512);
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicReferenceArray<PendingRequest> ring;
+
+    private final int mask;
+
+    private final Map<Long, PendingRequest> overflow = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    // 对端地址的负载统计，可以为null
+    private final EndpointStats stats;
+
+    public UnprocessedRequests() {
+        this(null);
     }
 
-    public void remove(String requestId) {
-        unprrocessedRequests.remove(requestId);
+    public UnprocessedRequests(EndpointStats stats) {
+        this.stats = stats;
+        int capacity = Integer.highestOneBit(Math.max(CAPACITY, 2) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
     }
 
-    public void complete(RpcResponse rpcResponse) {
-        // 接收到消息，应该从未处理map中移除
-        CompletableFuture<RpcResponse> future = unprrocessedRequests.remove(rpcResponse.getRequestId());
-        if (null != future) {
-            // 将响应对象放入future
-            future.complete(rpcResponse);
-        } else {
-            throw new IllegalStateException();
+    /**
+     * 生成这个连接上的下一个请求号，0保留给心跳等不需要响应的请求
+     */
+    public long nextSequenceId() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * 登记一个等待响应的请求
+     * @param timeoutMillis 超时时间，到期还没有响应就以REQUEST_TIMEOUT失败
+     */
+    public void put(long requestId, CompletableFuture<RpcResponse> future, long timeoutMillis) {
+        PendingRequest request = new PendingRequest(requestId, future);
+        int index = (int) requestId & mask;
+        if (!ring.compareAndSet(index, null, request)) {
+            overflow.put(requestId, request);
+        }
+        size.incrementAndGet();
+        if (stats != null) {
+            stats.begin();
+        }
+        // 和failAll并发时，failAll可能已经扫过这个槽位了，这里自己收尾
+        if (closed) {
+            if (remove(requestId) != null) {
+                future.completeExceptionally(new RpcException(RpcError.CHANNEL_CLOSED));
+            }
+            return;
+        }
+        request.timeout = TIMER.newTimeout(request, timeoutMillis, TimeUnit.MILLISECONDS);
+        // 响应可能在登记超时任务之前就到了，那时cancelTimeout还看不到任务，这里补上取消，不让它在时间轮里留到超时
+        if (request.finished) {
+            request.cancelTimeout();
         }
     }
 
+    /**
+     * 移除一个请求，比如请求没有发送成功
+     * @return 被移除的future，请求已经完成或不存在时返回null
+     */
+    public CompletableFuture<RpcResponse> remove(long requestId) {
+        PendingRequest request = take(requestId);
+        if (request == null) {
+            return null;
+        }
+        request.cancelTimeout();
+        request.abort();
+        return request.future;
+    }
 
+    /**
+     * 收到响应，完成对应的future
+     * 请求已经超时或者连接已经失败过的迟到响应直接丢弃，不再在EventLoop上抛异常
+     */
+    public boolean complete(RpcResponse rpcResponse) {
+        PendingRequest request = take(rpcResponse.getSequenceId());
+        if (request == null) {
+            logger.warn("收到迟到或未知的响应, 请求号: {}", rpcResponse.getSequenceId());
+            return false;
+        }
+        request.cancelTimeout();
+        request.end();
+        // 将响应对象放入future
+        request.future.complete(rpcResponse);
+        return true;
+    }
 
+    /**
+     * 连接关闭时，让这个连接上所有还没响应的请求一起失败
+     */
+    public void failAll(Throwable cause) {
+        closed = true;
+        for (int i = 0; i < ring.length(); i++) {
+            PendingRequest request = ring.getAndSet(i, null);
+            if (request != null) {
+                size.decrementAndGet();
+                request.cancelTimeout();
+                request.abort();
+                request.future.completeExceptionally(cause);
+            }
+        }
+        for (Long requestId : overflow.keySet()) {
+            PendingRequest request = overflow.remove(requestId);
+            if (request != null) {
+                size.decrementAndGet();
+                request.cancelTimeout();
+                request.abort();
+                request.future.completeExceptionally(cause);
+            }
+        }
+    }
 
+    /**
+     * 当前还在等待响应的请求数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private PendingRequest take(long requestId) {
+        int index = (int) requestId & mask;
+        PendingRequest request = ring.get(index);
+        if (request != null && request.requestId == requestId && ring.compareAndSet(index, request, null)) {
+            size.decrementAndGet();
+            return request;
+        }
+        if (!overflow.isEmpty()) {
+            request = overflow.remove(requestId);
+            if (request != null) {
+                size.decrementAndGet();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 表里的一项，同时也是它自己的超时任务
+     */
+    private final class PendingRequest implements TimerTask {
+
+        private final long requestId;
+
+        private final CompletableFuture<RpcResponse> future;
+
+        private final long startNanos = System.nanoTime();
+
+        private volatile Timeout timeout;
+
+        // 已经从表里取走，不再需要超时任务
+        private volatile boolean finished;
+
+        PendingRequest(long requestId, CompletableFuture<RpcResponse> future) {
+            this.requestId = requestId;
+            this.future = future;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            if (take(requestId) == this) {
+                // 超时也算一次(很慢的)响应，让负载均衡避开这个节点
+                end();
+                future.completeExceptionally(new RpcException(RpcError.REQUEST_TIMEOUT, "请求号:" + requestId));
+            }
+        }
+
+        void end() {
+            if (stats != null) {
+                stats.end(System.nanoTime() - startNanos);
+            }
+        }
+
+        void abort() {
+            if (stats != null) {
+                stats.abort();
+            }
+        }
+
+        /**
+         * 先标记再读超时任务，和put里先写任务再读标记配合，两边至少有一边能看到对方，任务一定会被取消
+         */
+        void cancelTimeout() {
+            finished = true;
+            Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
 }
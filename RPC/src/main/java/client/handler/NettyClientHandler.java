@@ -1,10 +1,11 @@
 package client.handler;
 
-import client.client.ChannelProvider;
 import client.client.UnprocessedRequests;
+import common.config.Handshake;
+import common.config.RpcError;
+import common.config.RpcException;
 import common.reqeust.RpcRequest;
 import common.response.RpcResponse;
-import common.serializer.CommonSerializer;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -15,7 +16,7 @@ import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
+import java.util.Map;
 
 public class NettyClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
 
@@ -23,8 +24,35 @@ public class NettyClientHandler extends SimpleChannelInboundHandler<RpcResponse>
 
     private UnprocessedRequests unprocessedRequests;
 
+    // 是否使用握手下发的方法编号
+    private boolean methodIds;
+
     public NettyClientHandler() {
-        this.unprocessedRequests = new UnprocessedRequests();
+        this(new UnprocessedRequests());
+    }
+
+    /**
+     * @param unprocessedRequests 这个连接自己的未处理请求表
+     */
+    public NettyClientHandler(UnprocessedRequests unprocessedRequests) {
+        this(unprocessedRequests, false);
+    }
+
+    /**
+     * @param methodIds 是否使用握手下发的方法编号，拿到之前和老版本的服务端都按名字调用
+     */
+    public NettyClientHandler(UnprocessedRequests unprocessedRequests, boolean methodIds) {
+        this.unprocessedRequests = unprocessedRequests;
+        this.methodIds = methodIds;
+    }
+
+    /**
+     * 连接建立后先发握手，服务端据此确定这个连接使用的序列化器，并下发方法编号表
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.writeAndFlush(Handshake.request()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        super.channelActive(ctx);
     }
 
     /**
@@ -40,10 +68,9 @@ public class NettyClientHandler extends SimpleChannelInboundHandler<RpcResponse>
             IdleState state = ((IdleStateEvent) evt).state();
             // 如果事件是一段事件内没有数据发送
             if (state == IdleState.WRITER_IDLE) {
-                // 则获得channel并写入心跳包
+                // 则在空闲的这个连接上写入心跳包，连接池里有多个连接，不能再按地址去取
                 logger.info("发送心跳包[{}]", ctx.channel().remoteAddress());
-                Channel channel = ChannelProvider.get((InetSocketAddress) ctx.channel().remoteAddress(),
-                CommonSerializer.getByCode(CommonSerializer.DEFAULT_SERIALIZER));
+                Channel channel = ctx.channel();
                 RpcRequest rpcRequest = new RpcRequest();
                 rpcRequest.setHeartBeat(true);
                 // 设置一个Listener监听服务端是否接收到心跳包，如果接收到就表示对方在线，不用关闭Channel
@@ -62,6 +89,15 @@ public class NettyClientHandler extends SimpleChannelInboundHandler<RpcResponse>
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, RpcResponse msg) throws Exception {
         try {
+            if (Handshake.isResponse(msg)) {
+                ctx.channel().attr(Handshake.BATCH_SUPPORTED).set(Handshake.supportsBatch(msg));
+                if (methodIds) {
+                    Map<String, Integer> table = Handshake.methodIds(msg);
+                    logger.info("收到服务端[{}]的方法编号表，共{}个方法", ctx.channel().remoteAddress(), table.size());
+                    ctx.channel().attr(Handshake.METHOD_IDS).set(table);
+                }
+                return;
+            }
             logger.info(String.format("客户端接收到消息: %s", msg));
             // 生成一个AttributeKey
             // AttributeMap<AttributeKey, AttributeValue>是绑定在Channel上的，可以设置用来获取通道对象
@@ -72,13 +108,22 @@ public class NettyClientHandler extends SimpleChannelInboundHandler<RpcResponse>
             // ctx.channel().close();
 
             // 将响应数据取出
-            logger.info("本次响应id:{}", msg.getRequestId());
+            logger.info("本次响应id:{}", msg.getSequenceId());
             unprocessedRequests.complete(msg);
         } finally {
             ReferenceCountUtil.release(msg);
         }
     }
 
+    /**
+     * 连接断开，这个连接上还在等待响应的请求不会再有结果了，全部失败
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        unprocessedRequests.failAll(new RpcException(RpcError.CHANNEL_CLOSED, String.valueOf(ctx.channel().remoteAddress())));
+        super.channelInactive(ctx);
+    }
+
     /**
      * 处理InboundHandler异常
      */
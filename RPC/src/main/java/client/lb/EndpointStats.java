@@ -0,0 +1,94 @@
+package client.lb;
+
+import common.config.RpcConfig;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个服务提供者的实时负载：正在进行的请求数 + 响应时间的peak EWMA
+ * peak EWMA：新的响应时间比当前值大时直接取新值，比当前值小时才按时间衰减着靠过去
+ * 所以提供者一变慢(GC、邻居抢CPU)分数马上变差，恢复以后再慢慢变好
+ * 同一个地址的所有连接共用一份，由未处理请求表在请求发出和结束时更新
+ */
+public class EndpointStats {
+
+    // 衰减的时间常数，单位毫秒，越小越快忘记过去的慢响应
+    private static final long DECAY_NANOS = TimeUnit.MILLISECONDS.toNanos(RpcConfig.getLong("rpc.lb.p2c.decay", 10_000));
+
+    // 还没有任何响应时间样本、但已经有请求在等的提供者，按这个延迟估算，避免新节点瞬间被打满
+    private static final double PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Map<InetSocketAddress, EndpointStats> STATS = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private double ewmaNanos;
+
+    private long stamp = System.nanoTime();
+
+    public static EndpointStats of(InetSocketAddress address) {
+        return STATS.computeIfAbsent(address, a -> new EndpointStats());
+    }
+
+    /**
+     * 提供者下线以后丢掉它的统计
+     */
+    public static void remove(InetSocketAddress address) {
+        STATS.remove(address);
+    }
+
+    /**
+     * 请求发出
+     */
+    public void begin() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * 请求结束，记录这次的响应时间，超时的请求按等待的时间记
+     */
+    public void end(long rttNanos) {
+        inFlight.decrementAndGet();
+        observe(rttNanos);
+    }
+
+    /**
+     * 请求没有结果就结束了，比如发送失败、连接断开，只减少在途请求数
+     */
+    public void abort() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 负载分数 = 响应时间 * (在途请求数 + 1)，越小越好
+     */
+    public double getCost() {
+        int pending = inFlight.get();
+        double latency = observe(0);
+        if (latency == 0 && pending != 0) {
+            return PENALTY_NANOS + pending;
+        }
+        return latency * (pending + 1);
+    }
+
+    private synchronized double observe(double rttNanos) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - stamp, 0);
+        stamp = now;
+        if (rttNanos > ewmaNanos) {
+            ewmaNanos = rttNanos;
+        } else {
+            double w = Math.exp(-elapsed / (double) DECAY_NANOS);
+            ewmaNanos = ewmaNanos * w + rttNanos * (1 - w);
+        }
+        return ewmaNanos;
+    }
+}
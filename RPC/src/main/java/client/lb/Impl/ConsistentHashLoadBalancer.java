@@ -1,94 +1,127 @@
 package client.lb.Impl;
 
 import client.lb.LoadBalancer;
-import org.apache.zookeeper.ZooKeeper;
-import org.apache.zookeeper.data.Stat;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import common.config.RpcConfig;
+import common.reqeust.RpcRequest;
+import common.util.MurmurHash3;
+import server.registry.ServiceInstance;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 一致性哈希负载均衡
+ * 每个服务缓存一个不可变的哈希环，注册中心给的实例列表换了(成员变化)才重建，平时选节点只是一次二分查找
+ * 哈希键取自调用参数，同样参数的请求总是落到同一个提供者上，提供者本地的缓存才有命中率
+ */
 public class ConsistentHashLoadBalancer implements LoadBalancer {
 
-    private static final Logger logger = LoggerFactory.getLogger(ConsistentHashLoadBalancer.class);
-
     /**
-     * 引入5个虚拟节点到hash环
+     * 每个物理节点在环上的虚拟节点数
      */
-    private static final int VIRTUAL_NODE_SIZE = 5;
+    private static final int VIRTUAL_NODE_SIZE = RpcConfig.getInt("rpc.lb.consistentHash.virtualNodes", 160);
 
+    /**
+     * 用哪几个参数计算哈希键，逗号分隔的参数下标，默认第一个参数
+     */
+    private static final int[] HASH_ARGUMENTS = parseArguments(RpcConfig.get("rpc.lb.consistentHash.arguments", "0"));
 
     /**
      * 虚拟节点分隔符，比如NODE A#1, NODE A#2
      */
     private static final String VIRTUAL_NODE_SPLIT = "#";
 
-    private ZooKeeper zk;
-
-    private String servicePath;
-
-    public ConsistentHashLoadBalancer(ZooKeeper zk, String servicePath) {
-        this.zk = zk;
-        this.servicePath = servicePath;
-    }
+    // 服务名 -> 哈希环
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
 
     /**
-     * @param addressList 需要负载均衡的服务列表
-     * 哈希一致性算法, 传入客户端的hashcode
-     * 返回zookeeper对应的【节点路径】
+     * @param instances 需要负载均衡的服务列表
+     * 哈希一致性算法, 按请求参数计算哈希键
      */
     @Override
-    public String select(List<String> addressList, int hashCode) {
-        TreeMap<Integer, String> ring = makeConsistentHashRing(addressList);
-        return allocateNode(ring,hashCode);
-    }
-
-    /**
-     * @param ring  hash环
-     * @param hashCode  客户端的hashcode
-     * 返回zookeeper对应的节点（名）
-     */
-    private String allocateNode(TreeMap<Integer, String> ring, int hashCode) {
-        // 取大于等于该key的第一个节点，如果没有，就取hash环中第一个节点
-        Map.Entry<Integer, String> node = ring.ceilingEntry(hashCode);
-        if (node == null) {
-            node = ring.firstEntry();
+    public ServiceInstance select(List<ServiceInstance> instances, RpcRequest rpcRequest) {
+        String serviceName = rpcRequest.getInterfaceName();
+        Ring ring = rings.get(serviceName);
+        // 注册中心只在成员变化时才换新的列表，列表没换说明环还能用
+        if (ring == null || ring.instances != instances) {
+            ring = new Ring(instances);
+            rings.put(serviceName, ring);
         }
-        return node.getValue();
+        return ring.select(MurmurHash3.hash32(hashKey(rpcRequest)));
     }
 
     /**
-     * 生成一个hash环
+     * 取指定下标的参数拼成哈希键，没有参数的方法用接口名+方法名
      */
-    private TreeMap<Integer, String> makeConsistentHashRing(List<String> addressList) {
-        TreeMap<Integer, String> ring = new TreeMap<>();
-        // 对每个物理服务节点都构建5个虚拟节点, 并绑定在一起
-        for (String singleServer : addressList) {
-            for (int i = 0; i < VIRTUAL_NODE_SIZE; i++) {
-                // key为每个虚拟节点节点对应的hashcode，value为物理节点
-                ring.put((buildVirtualNode(singleServer) + "#" + i).hashCode(), singleServer);
+    private static String hashKey(RpcRequest rpcRequest) {
+        Object[] parameters = rpcRequest.getParameters();
+        StringBuilder key = new StringBuilder();
+        if (parameters != null) {
+            for (int index : HASH_ARGUMENTS) {
+                if (index < parameters.length) {
+                    key.append(parameters[index]);
+                }
             }
         }
-        return ring;
+        if (key.length() == 0) {
+            key.append(rpcRequest.getInterfaceName()).append('#').append(rpcRequest.getMethodName());
+        }
+        return key.toString();
+    }
+
+    private static int[] parseArguments(String arguments) {
+        return Arrays.stream(arguments.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .toArray();
     }
 
     /**
-     * 使用每个服务地址的ip和port构建一个地址串ip:port作为hash节点
+     * 不可变的哈希环，虚拟节点的哈希值排好序放在int数组里，二分查找第一个大于等于键的节点
      */
-    private String buildVirtualNode(String singleServer) {
-        try {
-            String address = new String(zk.getData(servicePath + "/" + singleServer, true, new Stat()));
-            return address;
-        } catch (Exception e) {
-            logger.error("构建hash环时出现错误 ", e);
+    private static final class Ring {
+
+        private final List<ServiceInstance> instances;
+
+        private final int[] hashes;
+
+        private final ServiceInstance[] nodes;
+
+        Ring(List<ServiceInstance> instances) {
+            this.instances = instances;
+            int size = instances.size() * VIRTUAL_NODE_SIZE;
+            // 高32位放哈希值，低32位放实例下标，一次排序就能让两者保持对应
+            long[] entries = new long[size];
+            int n = 0;
+            for (int i = 0; i < instances.size(); i++) {
+                String address = instances.get(i).getAddressString();
+                for (int j = 0; j < VIRTUAL_NODE_SIZE; j++) {
+                    int hash = MurmurHash3.hash32(address + VIRTUAL_NODE_SPLIT + j);
+                    entries[n++] = (long) hash << 32 | i;
+                }
+            }
+            Arrays.sort(entries);
+            this.hashes = new int[size];
+            this.nodes = new ServiceInstance[size];
+            for (int i = 0; i < size; i++) {
+                hashes[i] = (int) (entries[i] >> 32);
+                nodes[i] = instances.get((int) entries[i]);
+            }
         }
-        return null;
-    }
 
-    @Override
-    public String select(List<String> addressList) {
-        return null;
+        ServiceInstance select(int hash) {
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            // 比所有节点都大，回到环上第一个节点
+            if (index == hashes.length) {
+                index = 0;
+            }
+            return nodes[index];
+        }
     }
 }
@@ -0,0 +1,36 @@
+package client.lb.Impl;
+
+import client.lb.EndpointStats;
+import client.lb.LoadBalancer;
+import common.reqeust.RpcRequest;
+import server.registry.ServiceInstance;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power of two choices + peak EWMA
+ * 随机挑两个提供者，选负载分数(响应时间 * 在途请求数)低的那个
+ * 只比较两个就能避开最慢的节点，又不会像总选最优那样让所有客户端同时涌向同一个节点
+ */
+public class P2CLoadBalancer implements LoadBalancer {
+
+    @Override
+    public ServiceInstance select(List<ServiceInstance> instances, RpcRequest rpcRequest) {
+        int size = instances.size();
+        if (size == 1) {
+            return instances.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        // 第二个从剩下的里面挑，保证两个不重复
+        int b = random.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        ServiceInstance first = instances.get(a);
+        ServiceInstance second = instances.get(b);
+        return EndpointStats.of(first.getAddress()).getCost() <= EndpointStats.of(second.getAddress()).getCost()
+                ? first : second;
+    }
+}
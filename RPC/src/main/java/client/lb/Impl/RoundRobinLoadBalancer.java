@@ -1,8 +1,10 @@
 package client.lb.Impl;
 
 import client.lb.LoadBalancer;
+import common.reqeust.RpcRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import server.registry.ServiceInstance;
 
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -19,17 +21,10 @@ public class RoundRobinLoadBalancer implements LoadBalancer {
      * 轮询
      */
     @Override
-    public String select(List<String> addressList) {
-        // 如果计数器超过了列表大小，就应该取模保证从头开始轮询
-        if (atomicInteger.get() >= addressList.size()) {
-            atomicInteger.set(atomicInteger.get() % addressList.size());
-        }
-        logger.info("当前轮询到第{}个服务器", atomicInteger.get() + 1); // 默认从0开始数
-        return addressList.get(atomicInteger.getAndAdd(1));
-    }
-
-    @Override
-    public String select(List<String> addressList, int hashCode) {
-        return null;
+    public ServiceInstance select(List<ServiceInstance> addressList, RpcRequest rpcRequest) {
+        // 先取号再取模，不再先判断再重置计数器，并发时也不会越界；计数器溢出成负数后floorMod仍然非负
+        int index = Math.floorMod(atomicInteger.getAndIncrement(), addressList.size());
+        logger.info("当前轮询到第{}个服务器", index + 1); // 默认从0开始数
+        return addressList.get(index);
     }
 }
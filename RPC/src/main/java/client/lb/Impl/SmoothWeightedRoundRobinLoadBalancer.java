@@ -0,0 +1,137 @@
+package client.lb.Impl;
+
+import client.lb.LoadBalancer;
+import common.config.RpcConfig;
+import common.reqeust.RpcRequest;
+import server.registry.ServiceInstance;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 平滑加权轮询(nginx的smooth weighted round robin)
+ * 权重为 5:1:1 时得到的顺序是 a a b a c a a 这样分散开的，而不是 a a a a a b c
+ * 实例列表或权重变化时按nginx的算法预先算出一整轮的顺序，选节点时只用一个原子计数器取模，不加锁
+ * 刚启动的提供者在预热期内按运行时间线性放大权重，避免JIT还没热起来就被打满
+ */
+public class SmoothWeightedRoundRobinLoadBalancer implements LoadBalancer {
+
+    // 预热时间，单位毫秒
+    private static final long WARMUP_MILLIS = RpcConfig.getLong("rpc.lb.warmup", 60_000);
+
+    // 有提供者在预热时，每隔多久按新的权重重新计算一轮顺序，单位毫秒
+    private static final long WARMUP_REFRESH_MILLIS = 1000;
+
+    // 一轮顺序的最大长度，权重之和超过它时按比例缩小
+    private static final int MAX_SCHEDULE_LENGTH = 4096;
+
+    // 服务名 -> 一轮的顺序
+    private final Map<String, Schedule> schedules = new ConcurrentHashMap<>();
+
+    @Override
+    public ServiceInstance select(List<ServiceInstance> instances, RpcRequest rpcRequest) {
+        String serviceName = rpcRequest.getInterfaceName();
+        long now = System.currentTimeMillis();
+        Schedule schedule = schedules.get(serviceName);
+        if (schedule == null || schedule.instances != instances
+                || (schedule.warming && now - schedule.builtAt > WARMUP_REFRESH_MILLIS)) {
+            // 沿用原来的计数器：预热期每秒都会重算，计数器归零的话每次都从权重最大的节点重新开始，流量会偏向它
+            schedule = new Schedule(instances, now, schedule == null ? new AtomicInteger() : schedule.sequence);
+            schedules.put(serviceName, schedule);
+        }
+        return schedule.next();
+    }
+
+    /**
+     * 预热期内的权重 = 权重 * 已运行时间 / 预热时间，至少为1
+     */
+    static int effectiveWeight(ServiceInstance instance, long now) {
+        int weight = Math.max(instance.getWeight(), 0);
+        long uptime = now - instance.getTimestamp();
+        if (weight > 0 && instance.getTimestamp() > 0 && uptime >= 0 && uptime < WARMUP_MILLIS) {
+            return (int) Math.max(1, weight * uptime / WARMUP_MILLIS);
+        }
+        return weight;
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * 预先算好的一轮顺序，不可变，只有计数器在变
+     * 计数器在同一个服务的新旧顺序之间共用，重算以后按floorMod(计数器, 新长度)接着往下走
+     */
+    private static final class Schedule {
+
+        private final List<ServiceInstance> instances;
+
+        private final long builtAt;
+
+        private final boolean warming;
+
+        private final ServiceInstance[] order;
+
+        private final AtomicInteger sequence;
+
+        Schedule(List<ServiceInstance> instances, long now, AtomicInteger sequence) {
+            this.instances = instances;
+            this.sequence = sequence;
+            this.builtAt = now;
+            int n = instances.size();
+            int[] weights = new int[n];
+            boolean warming = false;
+            int divisor = 0;
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                weights[i] = effectiveWeight(instances.get(i), now);
+                warming |= weights[i] != Math.max(instances.get(i).getWeight(), 0);
+                divisor = gcd(weights[i], divisor);
+                total += weights[i];
+            }
+            this.warming = warming;
+            // 全部权重为0时退化成普通轮询
+            if (total == 0) {
+                this.order = instances.toArray(new ServiceInstance[0]);
+                return;
+            }
+            // 先约掉公约数，还太长就按比例缩小，不让一轮的长度失控
+            total = 0;
+            for (int i = 0; i < n; i++) {
+                weights[i] /= divisor;
+                total += weights[i];
+            }
+            if (total > MAX_SCHEDULE_LENGTH) {
+                long scaled = 0;
+                for (int i = 0; i < n; i++) {
+                    if (weights[i] > 0) {
+                        weights[i] = (int) Math.max(1, (long) weights[i] * MAX_SCHEDULE_LENGTH / total);
+                    }
+                    scaled += weights[i];
+                }
+                total = scaled;
+            }
+            // nginx的算法：每一步所有节点的当前值加上自己的权重，选当前值最大的，被选中的减去总权重
+            this.order = new ServiceInstance[(int) total];
+            long[] current = new long[n];
+            for (int step = 0; step < total; step++) {
+                int best = -1;
+                for (int i = 0; i < n; i++) {
+                    current[i] += weights[i];
+                    if (weights[i] > 0 && (best < 0 || current[i] > current[best])) {
+                        best = i;
+                    }
+                }
+                current[best] -= total;
+                order[step] = instances.get(best);
+            }
+        }
+
+        ServiceInstance next() {
+            // 计数器溢出成负数以后floorMod仍然落在[0, length)内
+            return order[Math.floorMod(sequence.getAndIncrement(), order.length)];
+        }
+    }
+}
@@ -1,15 +1,17 @@
 package client.lb;
 
+import common.reqeust.RpcRequest;
+import server.registry.ServiceInstance;
+
 import java.util.List;
 
 public interface LoadBalancer {
 
     /**
-     * @param addressList 需要负载均衡的服务列表
+     * @param instances 需要负载均衡的服务列表，注册中心只在成员变化时才换成新的列表
+     * @param rpcRequest 本次请求，一致性哈希等策略按请求的内容来选
      * @return  被选取的服务
      */
-    String select(List<String> addressList);
-
-    String select(List<String> addressList, int hashCode);
+    ServiceInstance select(List<ServiceInstance> instances, RpcRequest rpcRequest);
 
 }
@@ -0,0 +1,21 @@
+package common.annotation;
+
+import common.compress.CompressType;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标注在服务接口上，指定这个服务的请求和响应使用哪种压缩算法
+ * 只有消息体超过rpc.compress.threshold配置的大小时才会真正压缩，并且只对V2协议生效
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Compress {
+
+    CompressType value() default CompressType.SNAPPY;
+}
@@ -0,0 +1,18 @@
+package common.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 单向调用，可以标注在服务接口上，也可以标注在单个方法上，只对返回void的方法生效
+ * 客户端请求写出去就算调用完成，不登记未处理请求、不等响应；服务端执行完不回响应，失败只记日志
+ * 没有标注的void方法在配置rpc.client.onewayVoid=true时也按单向调用处理
+ */
+@Documented
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Oneway {
+}
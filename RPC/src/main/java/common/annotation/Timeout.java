@@ -0,0 +1,22 @@
+package common.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 调用超时时间，可以标注在服务接口上，也可以标注在单个方法上，方法上的优先
+ * 客户端按它计算本次调用的截止时间，剩余时间随请求发给服务端，服务端发现已经过了截止时间的请求直接丢弃不执行
+ */
+@Documented
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Timeout {
+
+    /**
+     * 超时时间，单位毫秒
+     */
+    long value();
+}
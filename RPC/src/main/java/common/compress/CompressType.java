@@ -0,0 +1,18 @@
+package common.compress;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 压缩算法编号，写在V2协议头标志位的低2位
+ */
+@AllArgsConstructor
+@Getter
+public enum CompressType {
+
+    NONE(0),
+    DEFLATE(1),
+    SNAPPY(2);
+
+    private final int code;
+}
@@ -0,0 +1,38 @@
+package common.compress;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 消息体压缩器
+ * 实现类不能持有和单次调用相关的状态，编解码器在所有连接间共用同一个实例
+ */
+public interface Compressor {
+
+    // 协议头里表示压缩算法的标志位
+    int FLAG_MASK = 0x03;
+
+    /**
+     * 把in的全部可读字节压缩后追加写入out
+     */
+    void compress(ByteBuf in, ByteBuf out);
+
+    /**
+     * 把in的全部可读字节解压后追加写入out
+     * @param maxLength 解压后的最大长度，超过就抛异常，防止很小的压缩包解压出超大数据
+     */
+    void decompress(ByteBuf in, ByteBuf out, int maxLength);
+
+    int getCode();
+
+    // 静态方法，按编号获取压缩器，NONE返回null
+    static Compressor getByCode(int code) {
+        switch (code) {
+            case 1:
+                return DeflateCompressor.INSTANCE;
+            case 2:
+                return SnappyCompressor.INSTANCE;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package common.compress;
+
+import common.config.RpcConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.compression.DecompressionException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate压缩，压缩率高，适合跨机房带宽紧张的场景
+ * 使用不带zlib头的原始deflate格式，Deflater/Inflater和中转用的byte数组都按线程复用
+ */
+public class DeflateCompressor implements Compressor {
+
+    static final DeflateCompressor INSTANCE = new DeflateCompressor();
+
+    private static final int LEVEL = RpcConfig.getInt("rpc.compress.deflate.level", Deflater.DEFAULT_COMPRESSION);
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final ThreadLocal<Deflater> deflaterThreadLocal = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Inflater> inflaterThreadLocal = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> inChunkThreadLocal = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    private static final ThreadLocal<byte[]> outChunkThreadLocal = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    @Override
+    public void compress(ByteBuf in, ByteBuf out) {
+        Deflater deflater = deflaterThreadLocal.get();
+        byte[] outChunk = outChunkThreadLocal.get();
+        try {
+            if (in.hasArray()) {
+                // 堆内存直接把底层数组交给Deflater
+                deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+                in.skipBytes(in.readableBytes());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.writeBytes(outChunk, 0, deflater.deflate(outChunk));
+                }
+                return;
+            }
+            // 堆外内存分块拷到中转数组里再压缩
+            byte[] inChunk = inChunkThreadLocal.get();
+            while (in.isReadable()) {
+                int n = Math.min(in.readableBytes(), inChunk.length);
+                in.readBytes(inChunk, 0, n);
+                deflater.setInput(inChunk, 0, n);
+                while (!deflater.needsInput()) {
+                    out.writeBytes(outChunk, 0, deflater.deflate(outChunk));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.writeBytes(outChunk, 0, deflater.deflate(outChunk));
+            }
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuf in, ByteBuf out, int maxLength) {
+        Inflater inflater = inflaterThreadLocal.get();
+        byte[] inChunk = inChunkThreadLocal.get();
+        byte[] outChunk = outChunkThreadLocal.get();
+        int total = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!in.isReadable()) {
+                        throw new DecompressionException("deflate数据不完整");
+                    }
+                    int n = Math.min(in.readableBytes(), inChunk.length);
+                    in.readBytes(inChunk, 0, n);
+                    inflater.setInput(inChunk, 0, n);
+                }
+                int n = inflater.inflate(outChunk);
+                total += n;
+                if (total > maxLength) {
+                    throw new DecompressionException("解压后的长度超过上限 " + maxLength);
+                }
+                out.writeBytes(outChunk, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new DecompressionException(e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    @Override
+    public int getCode() {
+        return CompressType.DEFLATE.getCode();
+    }
+}
@@ -0,0 +1,84 @@
+package common.compress;
+
+import common.util.VarIntUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.Snappy;
+
+/**
+ * Snappy压缩，LZ77一族的快速算法，压缩率不如Deflate，但CPU开销小很多
+ * 直接使用Netty自带的实现，在ByteBuf上读写，不需要额外依赖
+ *
+ * Netty的Snappy编码用short保存哈希表里的偏移，一次最多只能压缩32767字节，所以和SnappyFrameEncoder一样分块压缩
+ * 格式：varint原始总长度 | { varint块长度 | 一块独立的snappy数据(开头是这一块的原始长度) }
+ */
+public class SnappyCompressor implements Compressor {
+
+    static final SnappyCompressor INSTANCE = new SnappyCompressor();
+
+    // 每块的最大原始长度
+    private static final int MAX_BLOCK_LENGTH = 32767;
+
+    // Snappy对象带有解码状态，不是线程安全的，每个线程一个
+    private static final ThreadLocal<Snappy> snappyThreadLocal = ThreadLocal.withInitial(Snappy::new);
+
+    @Override
+    public void compress(ByteBuf in, ByteBuf out) {
+        Snappy snappy = snappyThreadLocal.get();
+        VarIntUtil.writeVarInt(out, in.readableBytes());
+        while (in.isReadable()) {
+            // Netty的实现在readerIndex不为0时不会正确移动readerIndex，每块切成单独的slice再压缩
+            ByteBuf block = in.readSlice(Math.min(in.readableBytes(), MAX_BLOCK_LENGTH));
+            // 块长度压缩完才知道，先占5个字节再回填
+            int lengthIndex = out.writerIndex();
+            out.writeZero(VarIntUtil.PADDED_SIZE);
+            try {
+                snappy.encode(block, out, block.readableBytes());
+            } finally {
+                snappy.reset();
+            }
+            VarIntUtil.setPaddedVarInt(out, lengthIndex, out.writerIndex() - lengthIndex - VarIntUtil.PADDED_SIZE);
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuf in, ByteBuf out, int maxLength) {
+        // 先检查原始总长度，每一块解压前再检查这一块的长度，很小的压缩包不能解压出超大数据
+        long declared = VarIntUtil.readVarInt(in);
+        if (declared == VarIntUtil.INCOMPLETE) {
+            throw new DecompressionException("snappy数据不完整");
+        }
+        if (declared > maxLength) {
+            throw new DecompressionException("解压后的长度 " + declared + " 超过上限 " + maxLength);
+        }
+        int length = (int) declared;
+        out.ensureWritable(length);
+        Snappy snappy = snappyThreadLocal.get();
+        int total = 0;
+        while (in.isReadable()) {
+            long chunkLength = VarIntUtil.readVarInt(in);
+            if (chunkLength == VarIntUtil.INCOMPLETE || chunkLength > in.readableBytes()) {
+                throw new DecompressionException("snappy数据不完整");
+            }
+            ByteBuf chunk = in.readSlice((int) chunkLength);
+            long blockLength = VarIntUtil.readVarInt(chunk.duplicate());
+            if (blockLength == VarIntUtil.INCOMPLETE || blockLength > MAX_BLOCK_LENGTH || total + blockLength > length) {
+                throw new DecompressionException("snappy数据块长度不对: " + blockLength);
+            }
+            try {
+                snappy.decode(chunk, out);
+            } finally {
+                snappy.reset();
+            }
+            total += (int) blockLength;
+        }
+        if (total != length) {
+            throw new DecompressionException("解压后的长度 " + total + " 和声明的 " + length + " 不一致");
+        }
+    }
+
+    @Override
+    public int getCode() {
+        return CompressType.SNAPPY.getCode();
+    }
+}
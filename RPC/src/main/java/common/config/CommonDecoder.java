@@ -1,65 +1,325 @@
 package common.config;
 
+import common.compress.Compressor;
 import common.reqeust.RpcRequest;
 import common.response.RpcResponse;
 import common.serializer.CommonSerializer;
+import common.serializer.StreamSerializer;
+import common.util.VarIntUtil;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.Attribute;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 解码器
+ * 按协议头里的长度字段切帧：数据没收全时直接返回，等下次数据到达再解，不再像ReplayingDecoder那样抛异常重放
+ * 收全以后从累积缓冲区上切一个slice直接反序列化，不再拷贝出一个byte[length]
+ * 同时支持V1和V2两种协议格式，靠第一个字节区分，见ProtocolVersion
  */
-public class CommonDecoder extends ReplayingDecoder {
+public class CommonDecoder extends ByteToMessageDecoder {
 
     private static final Logger logger = LoggerFactory.getLogger(CommonDecoder.class);
 
     // 4字节魔数，用来标识自定义协议，4位二进制表示一个16进制
     private static final int MAGIC_NUMBER = 0xCAFEBABE;
 
+    // V1魔数的第一个字节
+    private static final byte MAGIC_FIRST_BYTE = (byte) (MAGIC_NUMBER >>> 24);
+
+    // V1协议头长度：魔数 + 包类型 + 序列化器编号 + 数据长度，各4字节
+    private static final int V1_HEADER_LENGTH = 16;
+
+    // V2协议头最短长度：版本号 + 类型/序列化器 + 标志位 + 1字节varint + 8字节请求号
+    private static final int V2_MIN_HEADER_LENGTH = 12;
+
+    // 单帧数据的最大长度，防止错误的长度字段导致分配超大内存
+    public static final int DEFAULT_MAX_FRAME_LENGTH = RpcConfig.getInt("rpc.codec.maxFrameLength", 8 * 1024 * 1024);
+
+    private final int maxFrameLength;
+
+    public CommonDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public CommonDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf in, List<Object> out) throws Exception {
-        // 先读一个int，就是4字节的内容，正好就是魔数的大小
-        int magic = in.readInt();
-        // 1. 如果该值不等于魔数的值，则说明不是我们的自定义协议包
+        if (!in.isReadable()) {
+            return;
+        }
+        byte first = in.getByte(in.readerIndex());
+        if (first == ProtocolVersion.V2.getCode()) {
+            decodeV2(channelHandlerContext, in, out);
+        } else if (first == MAGIC_FIRST_BYTE) {
+            decodeV1(channelHandlerContext, in, out);
+        } else {
+            logger.error("不识别的协议包: {}", first);
+            in.skipBytes(in.readableBytes());
+            throw new RpcException(RpcError.UNKNOWN_PROTOCOL);
+        }
+    }
+
+    private void decodeV1(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws RpcException {
+        // 协议头都没收全，等待更多数据
+        if (in.readableBytes() < V1_HEADER_LENGTH) {
+            return;
+        }
+        int headerIndex = in.readerIndex();
+        // 1. 先读一个int，就是4字节的内容，正好就是魔数的大小
+        // 如果该值不等于魔数的值，则说明不是我们的自定义协议包
+        int magic = in.getInt(headerIndex);
         if (magic != MAGIC_NUMBER) {
             logger.error("不识别的协议包: {}", magic);
+            in.skipBytes(in.readableBytes());
             throw new RpcException(RpcError.UNKNOWN_PROTOCOL);
         }
 
         // 2. 再读package type，判断这是一个请求包还是响应包, 同样是4字节int
         // 如果是请求包，则告诉是RpcRequest Class，用于序列化
         // 如果是响应包，则告诉是RpcResponse Class，用于反序列化
-        int packageCode = in.readInt();
-        Class<?> packageClass;
+        Class<?> packageClass = packageClass(in, in.getInt(headerIndex + 4));
+
+        // 3. 接着读序列化器编号
+        CommonSerializer serializer = serializer(in, in.getInt(headerIndex + 8));
+
+        // 4. 读数据长度Data Length，超过上限的帧直接拒绝，不再盲目信任
+        int length = in.getInt(headerIndex + 12);
+        checkLength(in, length);
+        // 半包，等数据收全再解
+        if (in.readableBytes() < V1_HEADER_LENGTH + length) {
+            return;
+        }
+
+        // 5. 最后在累积缓冲区上切出数据部分，直接反序列化
+        in.skipBytes(V1_HEADER_LENGTH);
+        Object obj = deserialize(serializer, in.readSlice(length), packageClass);
+        // V1的请求号在消息体里，如果对端是用数字请求号转成的字符串，就还原出来
+        if (obj instanceof RpcRequest) {
+            RpcRequest rpcRequest = (RpcRequest) obj;
+            rpcRequest.setSequenceId(parseSequenceId(rpcRequest.getRequestId()));
+        } else if (obj instanceof RpcResponse) {
+            RpcResponse<?> rpcResponse = (RpcResponse<?>) obj;
+            rpcResponse.setSequenceId(parseSequenceId(rpcResponse.getRequestId()));
+        }
+        recordPeerVersion(ctx, ProtocolVersion.V1);
+        recordPeerSerializer(ctx, obj, serializer);
+        out.add(obj);
+    }
+
+    private void decodeV2(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws RpcException {
+        if (in.readableBytes() < V2_MIN_HEADER_LENGTH) {
+            return;
+        }
+        int headerIndex = in.readerIndex();
+        // 1. 高4位是包类型，低4位是序列化器编号
+        int typeAndSerializer = in.getUnsignedByte(headerIndex + 1);
+        if (typeAndSerializer >>> 4 == PackageType.BATCH_REQUEST_PACK.getCode()) {
+            decodeBatch(ctx, in, out);
+            return;
+        }
+        Class<?> packageClass = packageClass(in, typeAndSerializer >>> 4);
+        CommonSerializer serializer = serializer(in, typeAndSerializer & 0x0F);
+
+        // 2. 标志位，低2位是压缩算法，第3位表示带有截止时间，第4位表示按方法编号调用，第5位表示单向调用
+        int flags = in.getUnsignedByte(headerIndex + 2);
+        Compressor compressor = null;
+        if ((flags & Compressor.FLAG_MASK) != 0) {
+            compressor = Compressor.getByCode(flags & Compressor.FLAG_MASK);
+            if (compressor == null) {
+                logger.error("不识别的压缩算法: {}", flags & Compressor.FLAG_MASK);
+                in.skipBytes(in.readableBytes());
+                throw new RpcException(RpcError.UNKNOWN_COMPRESSOR);
+            }
+        }
+        in.skipBytes(3);
+
+        // 3. varint数据长度，长度字段本身没收全也要等
+        long varint = VarIntUtil.readVarInt(in);
+        if (varint == VarIntUtil.INCOMPLETE) {
+            in.readerIndex(headerIndex);
+            return;
+        }
+        int length = checkLength(in, varint);
+        if (in.readableBytes() < 8 + length) {
+            in.readerIndex(headerIndex);
+            return;
+        }
+
+        // 4. 8字节请求号，带截止时间的请求后面还有varint的剩余毫秒数，然后是数据
+        long sequenceId = in.readLong();
+        int remainingMillis = -1;
+        if ((flags & ProtocolVersion.FLAG_DEADLINE) != 0) {
+            varint = VarIntUtil.readVarInt(in);
+            if (varint == VarIntUtil.INCOMPLETE || in.readableBytes() < length) {
+                in.readerIndex(headerIndex);
+                return;
+            }
+            remainingMillis = (int) Math.min(varint, Integer.MAX_VALUE);
+        }
+        // 5. 带方法编号的请求，消息体只有参数数组
+        int methodId = 0;
+        if ((flags & ProtocolVersion.FLAG_METHOD_ID) != 0) {
+            varint = VarIntUtil.readVarInt(in);
+            if (varint == VarIntUtil.INCOMPLETE || in.readableBytes() < length) {
+                in.readerIndex(headerIndex);
+                return;
+            }
+            // 超出int范围的编号查不到方法，服务端回失败响应
+            methodId = (int) Math.min(varint, Integer.MAX_VALUE);
+            packageClass = Object[].class;
+        }
+        ByteBuf body = in.readSlice(length);
+        Object obj;
+        if (compressor == null) {
+            obj = deserialize(serializer, body, packageClass);
+        } else {
+            // 解压到一块池化的缓冲区，反序列化完就释放
+            ByteBuf decompressed = ctx.alloc().buffer(Math.min(length * 2, maxFrameLength));
+            try {
+                compressor.decompress(body, decompressed, maxFrameLength);
+                obj = deserialize(serializer, decompressed, packageClass);
+            } finally {
+                decompressed.release();
+            }
+        }
+        if (methodId != 0) {
+            // 接口名、方法名和参数类型由服务端按编号查出来
+            RpcRequest rpcRequest = new RpcRequest();
+            rpcRequest.setHeartBeat(false);
+            rpcRequest.setParameters((Object[]) obj);
+            rpcRequest.setMethodId(methodId);
+            obj = rpcRequest;
+        }
+        if (obj instanceof RpcRequest) {
+            RpcRequest rpcRequest = (RpcRequest) obj;
+            rpcRequest.setSequenceId(sequenceId);
+            rpcRequest.setOneway((flags & ProtocolVersion.FLAG_ONEWAY) != 0);
+            if (remainingMillis != -1) {
+                // 换算成本进程的截止时间，0被用来表示没有截止时间，避开它
+                rpcRequest.setDeadline((System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis)) | 1);
+            }
+        } else if (obj instanceof RpcResponse) {
+            ((RpcResponse<?>) obj).setSequenceId(sequenceId);
+        }
+        recordPeerVersion(ctx, ProtocolVersion.V2);
+        recordPeerSerializer(ctx, obj, serializer);
+        out.add(obj);
+    }
+
+    /**
+     * 批量请求帧：协议头和普通帧一样，消息体是若干个完整的V2请求帧，逐个解出来交给后面的handler，各自独立执行
+     */
+    private void decodeBatch(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws RpcException {
+        int headerIndex = in.readerIndex();
+        in.skipBytes(3);
+        long varint = VarIntUtil.readVarInt(in);
+        if (varint == VarIntUtil.INCOMPLETE) {
+            in.readerIndex(headerIndex);
+            return;
+        }
+        int length = checkLength(in, varint);
+        if (in.readableBytes() < 8 + length) {
+            in.readerIndex(headerIndex);
+            return;
+        }
+        in.skipBytes(8);
+        ByteBuf body = in.readSlice(length);
+        while (body.isReadable()) {
+            int frameIndex = body.readerIndex();
+            boolean isRequest = body.readableBytes() >= V2_MIN_HEADER_LENGTH
+                    && body.getByte(frameIndex) == ProtocolVersion.V2.getCode()
+                    && body.getUnsignedByte(frameIndex + 1) >>> 4 == PackageType.REQUEST_PACK.getCode();
+            if (isRequest) {
+                decodeV2(ctx, body, out);
+            }
+            // 批量帧里只能是完整的请求帧
+            if (!isRequest || body.readerIndex() == frameIndex) {
+                logger.error("批量请求帧里有不完整或者不是请求的数据");
+                throw new RpcException(RpcError.UNKNOWN_PACKAGE_TYPE);
+            }
+        }
+    }
+
+    private Class<?> packageClass(ByteBuf in, int packageCode) throws RpcException {
         if (packageCode == PackageType.REQUEST_PACK.getCode()) {
-            packageClass = RpcRequest.class;
+            return RpcRequest.class;
         } else if (packageCode == PackageType.RESPONSE_PACK.getCode()) {
-            packageClass = RpcResponse.class;
-        } else {
-            logger.error("不识别该数据包: {}", packageCode);
-            throw new RpcException(RpcError.UNKNOWN_PACKAGE_TYPE);
+            return RpcResponse.class;
         }
+        logger.error("不识别该数据包: {}", packageCode);
+        in.skipBytes(in.readableBytes());
+        throw new RpcException(RpcError.UNKNOWN_PACKAGE_TYPE);
+    }
 
-        // 3. 接着读序列化器编号
-        int serializerCode = in.readInt();
+    private CommonSerializer serializer(ByteBuf in, int serializerCode) throws RpcException {
         CommonSerializer serializer = CommonSerializer.getByCode(serializerCode);
         if (serializer == null) {
             logger.error("不识别的反序列化器: {}", serializerCode);
+            in.skipBytes(in.readableBytes());
             throw new RpcException(RpcError.UNKNOWN_SERIALIZER);
         }
+        return serializer;
+    }
 
-        // 4. 读数据长度Data Length
-        int length = in.readInt();
-        byte[] bytes = new byte[length];
+    private int checkLength(ByteBuf in, long length) throws RpcException {
+        if (length < 0 || length > maxFrameLength) {
+            logger.error("数据帧长度 {} 超过上限 {}", length, maxFrameLength);
+            in.skipBytes(in.readableBytes());
+            throw new RpcException(RpcError.FRAME_TOO_LARGE);
+        }
+        return (int) length;
+    }
 
-        // 5. 最后把数据读出来
-        in.readBytes(bytes);
-        Object obj = serializer.deserialize(bytes, packageClass);
-        out.add(obj);
+    private Object deserialize(CommonSerializer serializer, ByteBuf body, Class<?> packageClass) {
+        if (serializer instanceof StreamSerializer) {
+            return ((StreamSerializer) serializer).deserialize(body, packageClass);
+        }
+        return serializer.deserialize(ByteBufUtil.getBytes(body), packageClass);
+    }
+
+    /**
+     * 老版本客户端的请求号是UUID，解析不出来就返回0，此时只靠字符串请求号对应
+     */
+    private static long parseSequenceId(String requestId) {
+        if (requestId == null || requestId.isEmpty() || requestId.length() > 18) {
+            return 0;
+        }
+        for (int i = 0; i < requestId.length(); i++) {
+            if (!Character.isDigit(requestId.charAt(i))) {
+                return 0;
+            }
+        }
+        return Long.parseLong(requestId);
+    }
+
+    private static void recordPeerVersion(ChannelHandlerContext ctx, ProtocolVersion version) {
+        Attribute<ProtocolVersion> attr = ctx.channel().attr(ProtocolVersion.PEER_VERSION);
+        if (attr.get() != version) {
+            attr.set(version);
+        }
+    }
+
+    /**
+     * 服务端记录请求使用的序列化器，响应用同一个序列化器编码
+     * 客户端的连接池按地址+序列化器划分，一个连接上只会有一种，第一帧(握手)之后就不会再变
+     */
+    private static void recordPeerSerializer(ChannelHandlerContext ctx, Object obj, CommonSerializer serializer) {
+        if (!(obj instanceof RpcRequest)) {
+            return;
+        }
+        Attribute<CommonSerializer> attr = ctx.channel().attr(CommonEncoder.PEER_SERIALIZER);
+        if (attr.get() != serializer) {
+            attr.set(serializer);
+        }
     }
 }
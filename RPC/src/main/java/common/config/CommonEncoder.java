@@ -1,38 +1,200 @@
 package common.config;
 
+import common.compress.CompressType;
+import common.compress.Compressor;
+import common.reqeust.RpcBatchRequest;
 import common.reqeust.RpcRequest;
+import common.response.RpcResponse;
 import common.serializer.CommonSerializer;
+import common.serializer.StreamSerializer;
+import common.util.VarIntUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * 编码器
+ * 默认按V2协议编码；服务端收到过V1的请求时，对这个连接按V1回写，保证老版本的客户端能解析
+ * 序列化器同理：服务端按这个连接上请求使用的序列化器回写，构造时传入的只是还没收到请求时的默认值
  */
 public class CommonEncoder extends MessageToByteEncoder {
 
     // 4字节魔数，用来识别是自定义协议，4位二进制表示一个16进制
     private static final int MAGIC_NUMBER = 0xCAFEBABE;
 
+    // 消息体超过这个大小才压缩，太小的消息压缩收益抵不上CPU开销
+    public static final int DEFAULT_COMPRESS_THRESHOLD = RpcConfig.getInt("rpc.compress.threshold", 4096);
+
+    private static final Object[] EMPTY_PARAMETERS = new Object[0];
+
+    // 服务端记录的对端请求使用的序列化器，响应按它编码
+    public static final AttributeKey<CommonSerializer> PEER_SERIALIZER = AttributeKey.valueOf("peerSerializer");
+
     private final CommonSerializer serializer;
 
+    private final ProtocolVersion version;
+
+    private final int compressThreshold;
+
     public CommonEncoder(CommonSerializer serializer) {
+        this(serializer, ProtocolVersion.DEFAULT);
+    }
+
+    public CommonEncoder(CommonSerializer serializer, ProtocolVersion version) {
+        this(serializer, version, DEFAULT_COMPRESS_THRESHOLD);
+    }
+
+    public CommonEncoder(CommonSerializer serializer, ProtocolVersion version, int compressThreshold) {
         this.serializer = serializer;
+        this.version = version;
+        this.compressThreshold = compressThreshold;
     }
 
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext, Object msg, ByteBuf out) throws Exception {
+        ProtocolVersion peerVersion = channelHandlerContext.channel().attr(ProtocolVersion.PEER_VERSION).get();
+        CommonSerializer peerSerializer = channelHandlerContext.channel().attr(PEER_SERIALIZER).get();
+        CommonSerializer serializer = peerSerializer == null ? this.serializer : peerSerializer;
+        if (msg instanceof RpcBatchRequest) {
+            encodeBatch(channelHandlerContext, serializer, peerVersion == null ? version : peerVersion, (RpcBatchRequest) msg, out);
+        } else if ((peerVersion == null ? version : peerVersion) == ProtocolVersion.V1) {
+            encodeV1(serializer, msg, out);
+        } else {
+            encodeV2(channelHandlerContext, serializer, msg, out);
+        }
+    }
+
+    /**
+     * 批量请求：V2协议写成一个BATCH帧，协议头和普通帧相同(标志位和请求号为0)，消息体是每个请求各自完整的V2帧
+     * 内层的帧直接编码进out，外层长度和普通帧一样先占5个字节，写完再回填
+     * V1协议没有批量帧，逐个编码成普通帧写进同一个缓冲区，仍然只写一次
+     */
+    private void encodeBatch(ChannelHandlerContext ctx, CommonSerializer serializer, ProtocolVersion version,
+                             RpcBatchRequest batch, ByteBuf out) {
+        if (version == ProtocolVersion.V1) {
+            for (RpcRequest rpcRequest : batch.getRequests()) {
+                encodeV1(serializer, rpcRequest, out);
+            }
+            return;
+        }
+        out.writeByte(ProtocolVersion.V2.getCode());
+        out.writeByte(PackageType.BATCH_REQUEST_PACK.getCode() << 4 | serializer.getCode());
+        out.writeByte(0);
+        int lengthIndex = out.writerIndex();
+        out.writeZero(VarIntUtil.PADDED_SIZE);
+        out.writeLong(0);
+        int bodyIndex = out.writerIndex();
+        for (RpcRequest rpcRequest : batch.getRequests()) {
+            encodeV2(ctx, serializer, rpcRequest, out);
+        }
+        VarIntUtil.setPaddedVarInt(out, lengthIndex, out.writerIndex() - bodyIndex);
+    }
+
+    private void encodeV1(CommonSerializer serializer, Object msg, ByteBuf out) {
         out.writeInt(MAGIC_NUMBER);
         // 如果消息是RPC请求，那就先写入请求标识到ByteBuf
         // 否则写入响应标识PackageType
         if (msg instanceof RpcRequest) {
             out.writeInt(PackageType.REQUEST_PACK.getCode());
+            // V1协议头里没有请求号，只能把数字请求号转成字符串放进消息体
+            RpcRequest rpcRequest = (RpcRequest) msg;
+            if (rpcRequest.getRequestId() == null && rpcRequest.getSequenceId() != 0) {
+                rpcRequest.setRequestId(String.valueOf(rpcRequest.getSequenceId()));
+            }
         } else {
             out.writeInt(PackageType.RESPONSE_PACK.getCode());
         }
         out.writeInt(serializer.getCode()); // 写入序列化器编号，指定使用哪个序列化器，比如Kryo，protoStuff
+        if (serializer instanceof StreamSerializer) {
+            // 先占住4字节的长度字段，数据直接写进out，写完再回填真实长度
+            int lengthIndex = out.writerIndex();
+            out.writeInt(0);
+            ((StreamSerializer) serializer).serialize(msg, out);
+            out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+            return;
+        }
         byte[] bytes = serializer.serialize(msg);   // 序列化
         out.writeInt(bytes.length); // 写入数据长度，防止粘包
         out.writeBytes(bytes);  // 写入数据
     }
+
+    /**
+     * V2协议：版本号 | 包类型(高4位)+序列化器编号(低4位) | 标志位 | varint数据长度 | 8字节请求号 | 数据
+     * 数据直接序列化进out：长度字段先按varint最大的5个字节占位，写完数据再回填成补齐到5字节的varint，解码端照常读取
+     * 标志位低2位是压缩算法，消息指定了压缩算法并且消息体超过阈值时才压缩，压缩后的数据覆盖掉原始数据
+     * 请求带有截止时间时，请求号后面再跟一个varint的剩余毫秒数
+     * 请求带有握手得到的方法编号时，再跟一个varint的方法编号，消息体只写参数数组
+     */
+    private void encodeV2(ChannelHandlerContext ctx, CommonSerializer serializer, Object msg, ByteBuf out) {
+        int packageCode;
+        long sequenceId;
+        CompressType compressType;
+        long deadline = 0;
+        int methodId = 0;
+        boolean oneway = false;
+        Object bodyObject = msg;
+        if (msg instanceof RpcRequest) {
+            RpcRequest rpcRequest = (RpcRequest) msg;
+            packageCode = PackageType.REQUEST_PACK.getCode();
+            sequenceId = rpcRequest.getSequenceId();
+            compressType = rpcRequest.getCompressType();
+            deadline = rpcRequest.getDeadline();
+            methodId = rpcRequest.getMethodId();
+            oneway = rpcRequest.isOneway();
+            if (methodId != 0) {
+                bodyObject = rpcRequest.getParameters() == null ? EMPTY_PARAMETERS : rpcRequest.getParameters();
+            }
+        } else {
+            packageCode = PackageType.RESPONSE_PACK.getCode();
+            sequenceId = msg instanceof RpcResponse ? ((RpcResponse<?>) msg).getSequenceId() : 0;
+            compressType = msg instanceof RpcResponse ? ((RpcResponse<?>) msg).getCompressType() : null;
+        }
+        int flags = methodId != 0 ? ProtocolVersion.FLAG_METHOD_ID : 0;
+        if (oneway) {
+            flags |= ProtocolVersion.FLAG_ONEWAY;
+        }
+        out.writeByte(ProtocolVersion.V2.getCode());
+        out.writeByte(packageCode << 4 | serializer.getCode());
+        int flagsIndex = out.writerIndex();
+        out.writeByte(flags);
+        int lengthIndex = out.writerIndex();
+        out.writeZero(VarIntUtil.PADDED_SIZE);
+        out.writeLong(sequenceId);
+        if (deadline != 0) {
+            // 截止时间换算成剩余毫秒数，已经过期的发0，服务端会直接丢弃
+            flags |= ProtocolVersion.FLAG_DEADLINE;
+            VarIntUtil.writeVarInt(out, (int) Math.max(0, Math.min(Integer.MAX_VALUE,
+                    TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+        }
+        if (methodId != 0) {
+            VarIntUtil.writeVarInt(out, methodId);
+        }
+        int bodyIndex = out.writerIndex();
+        if (serializer instanceof StreamSerializer) {
+            ((StreamSerializer) serializer).serialize(bodyObject, out);
+        } else {
+            out.writeBytes(serializer.serialize(bodyObject));
+        }
+        Compressor compressor = compressType == null ? null : Compressor.getByCode(compressType.getCode());
+        if (compressor != null && out.writerIndex() - bodyIndex >= compressThreshold) {
+            int length = out.writerIndex() - bodyIndex;
+            ByteBuf compressed = ctx.alloc().ioBuffer(length);
+            try {
+                compressor.compress(out.slice(bodyIndex, length), compressed);
+                // 压缩后没变小就还是发原始数据
+                if (compressed.readableBytes() < length) {
+                    out.writerIndex(bodyIndex);
+                    out.writeBytes(compressed);
+                    flags |= compressor.getCode();
+                }
+            } finally {
+                compressed.release();
+            }
+        }
+        out.setByte(flagsIndex, flags);
+        VarIntUtil.setPaddedVarInt(out, lengthIndex, out.writerIndex() - bodyIndex);
+    }
 }
@@ -0,0 +1,72 @@
+package common.config;
+
+import common.reqeust.RpcRequest;
+import common.response.RpcResponse;
+import io.netty.util.AttributeKey;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 连接建立后的握手：确定序列化器，服务端下发方法编号表
+ * 客户端连上以后用自己的序列化器发一个特殊的心跳包，老版本的服务端会当普通心跳忽略
+ * 新版本的服务端记下这个序列化器，之后的响应都用它编码，并回一个请求号为0的响应，
+ * 数据是服务端导出的全部方法的键(接口名#方法名(参数类型))，下标+1就是方法编号
+ * 收到编号表以后，客户端对表里有的方法发送带编号的请求，没收到(老服务端)或者表里没有的方法继续按名字调用
+ * 响应的message里是服务端支持的可选功能，逗号分隔，目前只有batch(批量请求帧)
+ */
+public class Handshake {
+
+    // 握手请求的接口名，握手响应的请求号
+    public static final String HANDSHAKE = "$handshake";
+
+    // 服务端支持批量请求帧
+    public static final String BATCH = "batch";
+
+    // 客户端：方法键 -> 方法编号，收到握手响应之前为空
+    public static final AttributeKey<Map<String, Integer>> METHOD_IDS = AttributeKey.valueOf("methodIds");
+
+    // 客户端：服务端是否支持批量请求帧，收到握手响应之前为空
+    public static final AttributeKey<Boolean> BATCH_SUPPORTED = AttributeKey.valueOf("batchSupported");
+
+    public static RpcRequest request() {
+        RpcRequest rpcRequest = new RpcRequest();
+        rpcRequest.setHeartBeat(true);
+        rpcRequest.setInterfaceName(HANDSHAKE);
+        return rpcRequest;
+    }
+
+    public static boolean isRequest(RpcRequest rpcRequest) {
+        return HANDSHAKE.equals(rpcRequest.getInterfaceName());
+    }
+
+    public static RpcResponse<Object> response(String[] methodKeys) {
+        RpcResponse<Object> rpcResponse = RpcResponse.success(methodKeys, HANDSHAKE);
+        rpcResponse.setMessage(BATCH);
+        return rpcResponse;
+    }
+
+    public static boolean isResponse(RpcResponse<?> rpcResponse) {
+        return HANDSHAKE.equals(rpcResponse.getRequestId());
+    }
+
+    public static boolean supportsBatch(RpcResponse<?> rpcResponse) {
+        String message = rpcResponse.getMessage();
+        return message != null && Arrays.asList(message.split(",")).contains(BATCH);
+    }
+
+    /**
+     * 把握手响应里的方法键表转换成 方法键 -> 方法编号
+     */
+    public static Map<String, Integer> methodIds(RpcResponse<?> rpcResponse) {
+        Map<String, Integer> methodIds = new HashMap<>();
+        if (rpcResponse.getData() instanceof String[]) {
+            String[] methodKeys = (String[]) rpcResponse.getData();
+            for (int i = 0; i < methodKeys.length; i++) {
+                methodIds.put(methodKeys[i], i + 1);
+            }
+        }
+        return methodIds;
+    }
+}
@@ -5,13 +5,15 @@ import lombok.Getter;
 
 /**
  * PackageType放在标识自定义协议里，用来标识这个包是请求包还是响应包
+ * 批量请求包只有V2协议有，消息体是若干个完整的请求帧
  */
 @Getter
 @AllArgsConstructor
 public enum PackageType {
 
     REQUEST_PACK(0),
-    RESPONSE_PACK(1);
+    RESPONSE_PACK(1),
+    BATCH_REQUEST_PACK(2);
 
     private final int code;
 
@@ -0,0 +1,43 @@
+package common.config;
+
+import io.netty.util.AttributeKey;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 协议版本
+ * V1：4字节魔数 0xCAFEBABE + 4字节包类型 + 4字节序列化器编号 + 4字节数据长度，请求号是消息体里的UUID字符串
+ * V2：1字节版本号 + 1字节(高4位包类型，低4位序列化器编号) + 1字节标志位 + varint数据长度 + 8字节long请求号
+ * V2的版本号(0x02)和V1魔数的第一个字节(0xCA)不同，解码器靠第一个字节区分两种格式，因此新旧节点可以混跑
+ *
+ * V2标志位：
+ *  - 低2位：压缩算法，见Compressor
+ *  - 第3位：请求带有截止时间，请求号后面跟一个varint表示剩余的毫秒数
+ *  - 第4位：按方法编号调用，(截止时间)后面跟一个varint方法编号，消息体只有参数数组，见Handshake
+ *  - 第5位：单向调用，服务端执行完不回响应
+ */
+@Getter
+@AllArgsConstructor
+public enum ProtocolVersion {
+
+    V1(1),
+    V2(2);
+
+    private final int code;
+
+    // 编码器默认使用的协议版本，滚动升级期间可以先配成1，等所有节点都升级后再切到2
+    public static final ProtocolVersion DEFAULT =
+            RpcConfig.getInt("rpc.protocol.version", 2) == 1 ? V1 : V2;
+
+    // 标志位：请求带有截止时间
+    public static final int FLAG_DEADLINE = 0x04;
+
+    // 标志位：请求用方法编号代替接口名、方法名和参数类型
+    public static final int FLAG_METHOD_ID = 0x08;
+
+    // 标志位：单向调用，服务端不回响应
+    public static final int FLAG_ONEWAY = 0x10;
+
+    // 记录对端最近一次使用的协议版本，服务端按请求的版本回响应
+    public static final AttributeKey<ProtocolVersion> PEER_VERSION = AttributeKey.valueOf("peerProtocolVersion");
+}
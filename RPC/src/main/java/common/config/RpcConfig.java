@@ -0,0 +1,91 @@
+package common.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 框架配置
+ * 先读取classpath下的rpc.properties（可以没有），再用JVM启动参数 -Dkey=value 覆盖
+ * 各个配置项的key和默认值由使用它的类自己定义
+ */
+public final class RpcConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcConfig.class);
+
+    private static final String CONFIG_FILE = "rpc.properties";
+
+    private static final Properties properties = load();
+
+    private RpcConfig() {
+    }
+
+    private static Properties load() {
+        Properties properties = new Properties();
+        try (InputStream in = RpcConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
+            if (in != null) {
+                properties.load(in);
+                logger.info("加载配置文件: {}", CONFIG_FILE);
+            }
+        } catch (IOException e) {
+            logger.error("读取配置文件时发生错误: ", e);
+        }
+        return properties;
+    }
+
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.error("配置项 {} 不是合法的整数: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.error("配置项 {} 不是合法的整数: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * 以prefix开头的所有配置项的key，用于按名字配置的一组配置项
+     */
+    public static Set<String> keys(String prefix) {
+        Set<String> keys = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
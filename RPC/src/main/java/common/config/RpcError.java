@@ -1,19 +1,27 @@
 package common.config;
 
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 
 @AllArgsConstructor
+@Getter
 public enum RpcError {
 
     SERVICE_NOT_IMPLEMENT_ANY_INTERFACE("服务调用失败"),
     SERVICE_NOT_FOUND("找不到对应的服务"),
+    METHOD_NOT_FOUND("找不到对应的方法"),
     UNKNOWN_PROTOCOL("不识别的协议包"),
     UNKNOWN_PACKAGE_TYPE("不识别的数据包类型"),
     UNKNOWN_SERIALIZER("不识别的(反)序列化器"),
     CLIENT_CONNECT_SERVER_FAILURE("客户端连接服务端失败"),
     SERIALIZER_NOT_FOUND("未找到序列化器"),
     SERVICE_INVOCATION_FAILURE("服务调用失败"),
-    RESPONSE_NOT_MATCH("响应与请求号不匹配");
+    RESPONSE_NOT_MATCH("响应与请求号不匹配"),
+    FRAME_TOO_LARGE("数据帧长度超过上限"),
+    UNKNOWN_COMPRESSOR("不识别的压缩算法"),
+    REQUEST_TIMEOUT("请求超时"),
+    CHANNEL_CLOSED("连接已关闭"),
+    SERVICE_REGISTER_FAILURE("注册服务失败");
 
     private final String message;
 }
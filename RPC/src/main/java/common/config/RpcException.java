@@ -6,14 +6,20 @@ public class RpcException extends Exception{
     String msg;
 
     public RpcException(RpcError e) {
+        super(e.getMessage());
         this.e = e;
     }
 
     public RpcException(RpcError e, String msg) {
+        super(e.getMessage() + ": " + msg);
         this.e = e;
         this.msg = msg;
     }
 
+    public RpcError getError() {
+        return e;
+    }
+
     @Override
     public String toString() {
         return super.toString();
@@ -0,0 +1,20 @@
+package common.reqeust;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 批量请求，多个发往同一个连接的请求打包成一帧发送，见CommonEncoder
+ * 只在客户端内部使用，不参与序列化：V2协议下编码成一个BATCH帧，消息体是每个请求各自完整的V2帧；
+ * 服务端解码时拆回单个请求并行执行，响应仍然逐个回写
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class RpcBatchRequest {
+
+    private List<RpcRequest> requests;
+}
@@ -1,5 +1,8 @@
 package common.reqeust;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import common.compress.CompressType;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -14,9 +17,11 @@ import java.io.Serializable;
 //同时也可以通过ObjectInputStream再将其解析为对象
 @AllArgsConstructor
 @NoArgsConstructor
+// paramTypes写在parameters前面，JSON反序列化时参数可以直接按类型解析，见RpcRequestDeserializer
+@JsonPropertyOrder({"requestId", "interfaceName", "methodName", "paramTypes", "parameters", "heartBeat"})
 public class RpcRequest implements Serializable {
 
-    // 请求号
+    // 请求号，V1协议里放在消息体中传输，V2协议不再使用
     private String requestId;
 
     // 待调用接口名字
@@ -33,4 +38,30 @@ public class RpcRequest implements Serializable {
 
     // 是否是心跳包
     private Boolean heartBeat;
+
+    // 数字请求号，V2协议放在协议头里传输，不参与消息体的序列化
+    @JsonIgnore
+    private transient long sequenceId;
+
+    // 消息体使用的压缩算法，V2协议放在协议头标志位里
+    @JsonIgnore
+    private transient CompressType compressType;
+
+    // 截止时间，System.nanoTime()的值，0表示没有
+    // 只在本进程内有意义，V2协议传输的是剩余的毫秒数，对端收到后换算成自己的截止时间
+    @JsonIgnore
+    private transient long deadline;
+
+    // 握手时服务端下发的方法编号，0表示按名字调用
+    // V2协议放在协议头里，带编号的请求消息体只有参数数组
+    @JsonIgnore
+    private transient int methodId;
+
+    // 客户端用来查方法编号的键，接口名#方法名(参数类型)，见MethodSignatures
+    @JsonIgnore
+    private transient String methodKey;
+
+    // 单向调用，V2协议放在协议头标志位里，服务端执行完不回响应
+    @JsonIgnore
+    private transient boolean oneway;
 }
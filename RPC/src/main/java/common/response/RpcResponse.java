@@ -2,7 +2,10 @@ package common.response;
 
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import common.compress.CompressType;
 import common.config.ResponseCode;
+import common.reqeust.RpcRequest;
 import lombok.Data;
 
 import java.io.Serializable;
@@ -23,6 +26,14 @@ public class RpcResponse<T> implements Serializable {
     // 响应数据
     private T data;
 
+    // 数字请求号，V2协议放在协议头里传输，不参与消息体的序列化
+    @JsonIgnore
+    private transient long sequenceId;
+
+    // 消息体使用的压缩算法，V2协议放在协议头标志位里
+    @JsonIgnore
+    private transient CompressType compressType;
+
     /**
      * 响应成功，返回状态码和响应数据
      */
@@ -49,4 +60,22 @@ public class RpcResponse<T> implements Serializable {
         response.setRequestId(requestId);
         return response;
     }
+
+    /**
+     * 按请求构造成功响应，同时带上字符串和数字两种请求号，保证新旧协议都能对应上
+     */
+    public static <T> RpcResponse<T> success(T data, RpcRequest rpcRequest) {
+        RpcResponse<T> response = success(data, rpcRequest.getRequestId());
+        response.setSequenceId(rpcRequest.getSequenceId());
+        return response;
+    }
+
+    /**
+     * 按请求构造失败响应
+     */
+    public static <T> RpcResponse<T> fail(ResponseCode code, RpcRequest rpcRequest) {
+        RpcResponse<T> response = fail(code, rpcRequest.getRequestId());
+        response.setSequenceId(rpcRequest.getSequenceId());
+        return response;
+    }
 }
@@ -1,5 +1,7 @@
 package common.serializer;
 
+import java.lang.reflect.Type;
+
 public interface CommonSerializer {
 
     // 默认的序列化器编号
@@ -11,18 +13,17 @@ public interface CommonSerializer {
     // 反序列化为对象
     Object deserialize(byte[] bytes, Class<?> clazz);
 
+    // 把反序列化出来的响应数据转换成方法声明的返回类型
+    // RpcResponse.data没有类型信息，自描述类型的序列化器(Kryo)原样返回，JSON一类的需要按声明类型重新绑定
+    default Object convert(Object value, Type type) {
+        return value;
+    }
+
     // 实际数据使用的序列化器编号，服务端和客户端应该使用统一标准
     int getCode();
 
-    // 静态方法，获取序列化器
+    // 静态方法，获取序列化器，返回注册表里的单例
     static CommonSerializer getByCode(int code) {
-        switch (code) {
-            case 0:
-                return new KryoSerializer();
-            case 1:
-                return new JsonSerializer();
-            default:
-                return null;
-        }
+        return SerializerRegistry.get(code);
     }
 }
@@ -2,17 +2,64 @@ package common.serializer;
 
 import common.reqeust.RpcRequest;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import common.config.SerializeException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class JsonSerializer implements CommonSerializer{
+/**
+ * Jackson序列化器
+ * ObjectMapper是线程安全的，所有实例共用一个配置好的，不会每条消息都新建一个；按类型生成的ObjectReader也缓存起来
+ * RpcRequest由RpcRequestDeserializer流式解析，参数直接按paramTypes绑定成声明的类型
+ * RpcResponse的data没有类型信息，反序列化出来是Map、Integer这样的通用类型，客户端再用convert按方法的返回类型转换
+ */
+public class JsonSerializer implements StreamSerializer {
 
     private static final Logger logger = LoggerFactory.getLogger(JsonSerializer.class);
 
-    private ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectMapper JSON_MAPPER = configure(new ObjectMapper());
+    private static final Map<Class<?>, ObjectReader> JSON_READERS = new ConcurrentHashMap<>();
+
+    private final ObjectMapper objectMapper;
+    private final Map<Class<?>, ObjectReader> readers;
+
+    // 方法返回类型 -> Jackson类型，两种格式的TypeFactory行为一样，共用一份
+    private static final Map<Type, JavaType> JAVA_TYPES = new ConcurrentHashMap<>();
+
+    public JsonSerializer() {
+        this(JSON_MAPPER, JSON_READERS);
+    }
+
+    /**
+     * 子类使用其他数据格式(比如Smile)的ObjectMapper
+     */
+    protected JsonSerializer(ObjectMapper objectMapper, Map<Class<?>, ObjectReader> readers) {
+        this.objectMapper = objectMapper;
+        this.readers = readers;
+    }
+
+    protected static ObjectMapper configure(ObjectMapper objectMapper) {
+        SimpleModule module = new SimpleModule("rpc");
+        module.addDeserializer(RpcRequest.class, new RpcRequestDeserializer());
+        return objectMapper.registerModule(module);
+    }
+
+    private ObjectReader reader(Class<?> clazz) {
+        return readers.computeIfAbsent(clazz, objectMapper::readerFor);
+    }
 
     /**
      * Jackson序列化
@@ -30,6 +77,21 @@ public class JsonSerializer implements CommonSerializer{
         }
     }
 
+    /**
+     * Jackson流式序列化，JsonGenerator直接写进ByteBuf，不再生成中间的byte数组
+     * @param obj 待序列化对象
+     * @param out 目标缓冲区
+     */
+    @Override
+    public void serialize(Object obj, ByteBuf out) {
+        try {
+            objectMapper.writeValue((OutputStream) new ByteBufOutputStream(out), obj);
+        } catch (IOException e) {
+            logger.error("序列化时发生错误：{}", e.getMessage());
+            throw new SerializeException("序列化时发生错误");
+        }
+    }
+
     /**
      * jackson反序列化
      * @param bytes  二进制数组
@@ -39,11 +101,7 @@ public class JsonSerializer implements CommonSerializer{
     @Override
     public Object deserialize(byte[] bytes, Class<?> clazz) {
         try {
-            Object obj = objectMapper.readValue(bytes, clazz);
-            if (obj instanceof RpcRequest) {
-                obj = handleRequest(obj);
-            }
-            return obj;
+            return reader(clazz).readValue(bytes);
         } catch (IOException e) {
             logger.error("反序列化时发生错误: {}", e.getMessage());
             e.printStackTrace();
@@ -52,25 +110,40 @@ public class JsonSerializer implements CommonSerializer{
     }
 
     /**
-     * 这里有一个需要注意的点，就是在 RpcRequest 反序列化时，由于其中有一个字段是 Object 数组
-     * 在反序列化时序列化器会根据字段类型进行反序列化，而 Object 就是一个十分模糊的类型，会出现反序列化失败的现象
-     * 这时就需要 RpcRequest 中的另一个字段 ParamTypes 来获取到 Object 数组中的每个实例的实际类，辅助反序列化
-     * 注意【只有Json序列化会出现这种情况】，因为他的本质是将数据序列化为【Json字符串】，这样就丢失了【类型信息】
-     * 而其他序列化器是把数据序列化为二进制数组，包含了类型信息
+     * 直接从ByteBuf反序列化，堆内存读底层数组，堆外内存通过ByteBufInputStream读
      */
-    private Object handleRequest(Object obj) throws IOException {
-        RpcRequest rpcRequest = (RpcRequest) obj;
-        for (int i = 0; i < rpcRequest.getParamTypes().length; i++) {
-            Class<?> clazz = rpcRequest.getParamTypes()[i];
-            // superClass.isAssignableFrom(childClass) 父类（或接口类）判断给定类是否是它本身或其子类，类似于InstanceOf
-            // 判断方法参数（object数据）里的每个参数是否是其对应的类型
-            // 如果不是，就把这个参数写到byte数组里，并重新反序列化读出来并指定他的反序列化类型
-            if (!clazz.isAssignableFrom(rpcRequest.getParameters()[i].getClass())) {
-                byte[] bytes = objectMapper.writeValueAsBytes(rpcRequest.getParameters()[i]);
-                rpcRequest.getParameters()[i] = objectMapper.readValue(bytes, clazz);
+    @Override
+    public Object deserialize(ByteBuf in, Class<?> clazz) {
+        try {
+            Object obj;
+            if (in.hasArray()) {
+                obj = reader(clazz).readValue(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+                in.skipBytes(in.readableBytes());
+            } else {
+                obj = reader(clazz).readValue((InputStream) new ByteBufInputStream(in));
             }
+            return obj;
+        } catch (IOException e) {
+            logger.error("反序列化时发生错误: {}", e.getMessage());
+            throw new SerializeException("反序列化时发生错误");
+        }
+    }
+
+    /**
+     * 按声明的返回类型转换响应数据，比如LinkedHashMap转成DTO、Integer转成long
+     */
+    @Override
+    public Object convert(Object value, Type type) {
+        if (value == null || type == void.class || (type instanceof Class && ((Class<?>) type).isInstance(value))) {
+            return value;
+        }
+        JavaType javaType = JAVA_TYPES.computeIfAbsent(type, t -> objectMapper.getTypeFactory().constructType(t));
+        try {
+            return objectMapper.convertValue(value, javaType);
+        } catch (IllegalArgumentException e) {
+            logger.error("响应数据无法转换成 {}: {}", type, e.getMessage());
+            throw new SerializeException("响应数据无法转换成 " + type.getTypeName());
         }
-        return rpcRequest;
     }
 
     /**
@@ -1,50 +1,255 @@
 package common.serializer;
 
+import common.config.RpcConfig;
 import common.config.SerializeException;
+import common.reqeust.RpcRequest;
+import common.response.RpcResponse;
+import common.util.MurmurHash3;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoPool;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class KryoSerializer implements CommonSerializer{
+/**
+ * Kryo序列化器
+ * Kryo实例放在池子里复用，类的缓存不会每条消息都重建
+ * 注册过的类只写一个varint编号，没注册的类要写完整的类名，所以客户端和服务端必须用同样的编号注册同样的类：
+ *  - 框架自己的类和常用的JDK类按CORE_CLASSES里的顺序编号，只能在末尾追加
+ *  - 服务接口用到的类(参数、返回值以及它们的字段类型)在发布服务/生成代理时注册，编号由类名哈希得到，和注册顺序无关
+ *  - 两个类的哈希编号冲突时直接抛异常，不能让两端按各自的注册顺序决定谁拿到编号；
+ *    用rpc.serializer.kryo.id.类名=编号给其中一个类指定固定编号解决，两端必须配置相同
+ * 仍然允许未注册的类(比如Object类型参数的实际类型)，按类名写
+ */
+public class KryoSerializer implements StreamSerializer {
 
     private static final Logger logger = LoggerFactory.getLogger(KryoSerializer.class);
 
-    // 初始化ThreadLocal里的对象
-    private static final ThreadLocal<Kryo> kryoThreadLocal = ThreadLocal.withInitial(() -> {
+    // 框架自己的类的编号从这里开始，前面是Kryo内置的基本类型
+    private static final int CORE_ID_BASE = 20;
+
+    // 不能调整顺序，新的类只能加在末尾，否则新旧节点的编号对不上
+    private static final Class<?>[] CORE_CLASSES = {
+            RpcRequest.class, RpcResponse.class, Object[].class, Class[].class, Class.class,
+            ArrayList.class, LinkedList.class, HashMap.class, LinkedHashMap.class, TreeMap.class,
+            HashSet.class, LinkedHashSet.class, Date.class, BigDecimal.class, BigInteger.class,
+            byte[].class, int[].class, long[].class, String[].class
+    };
+
+    // 服务类的编号范围：SERVICE_ID_BASE + 类名哈希的低20位，varint编码后占3个字节
+    private static final int SERVICE_ID_BASE = 1024;
+    private static final int SERVICE_ID_MASK = 0xFFFFF;
+
+    // 指定服务类编号的配置项前缀，后面跟完整类名
+    private static final String SERVICE_ID_PREFIX = "rpc.serializer.kryo.id.";
+
+    // 是否注册服务接口用到的类，关掉以后这些类按类名传输
+    private static final boolean REGISTER_SERVICE_CLASSES =
+            RpcConfig.getBoolean("rpc.serializer.kryo.registerServiceClasses", true);
+
+    // 已经注册的服务类，只增不减；池子里的Kryo借出时补上自己还没注册的部分
+    private static final List<Class<?>> serviceClasses = new CopyOnWriteArrayList<>();
+    private static final Map<Integer, Class<?>> serviceClassIds = new ConcurrentHashMap<>();
+    private static final Set<Class<?>> visited = ConcurrentHashMap.newKeySet();
+
+    // Kryo上下文里记录已经注册到serviceClasses的第几个
+    private static final String REGISTERED = "rpc.serviceClasses";
+
+    // 池子用软引用，内存紧张时可以回收空闲的Kryo
+    private static final KryoPool pool = new KryoPool.Builder(KryoSerializer::newKryo).softReferences().build();
+
+    // 每个线程复用一个固定大小的Output缓冲区，写满后刷到目标流里，不会随消息大小无限增长
+    private static final ThreadLocal<Output> outputThreadLocal = ThreadLocal.withInitial(() -> new Output(4096));
+
+    // 序列化成byte数组时复用的缓冲区，可以增长；超过上限的用完就丢掉，避免线程一直占着大数组
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final ThreadLocal<Output> bytesOutputThreadLocal = ThreadLocal.withInitial(() -> new Output(4096, -1));
+
+    // 反序列化时复用的Input视图，堆内存直接包装底层数组，堆外内存包装成ByteBuffer，都不拷贝数据
+    private static final byte[] EMPTY_BYTES = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private static final ThreadLocal<Input> inputThreadLocal = ThreadLocal.withInitial(Input::new);
+    private static final ThreadLocal<ByteBufferInput> byteBufferInputThreadLocal = ThreadLocal.withInitial(ByteBufferInput::new);
+
+    private static Kryo newKryo() {
         Kryo kryo = new Kryo();
-        // 注册类，如果是writeObject则不需要注册，但必须提供class信息
-        // kryo.register(RpcResponse.class);
-        // kryo.register(RpcRequest.class);
         // 打开循环引用支持
         kryo.setReferences(true);
         // 不强制要求注册类，否则涉及的所有类比如Object都必须注册
         kryo.setRegistrationRequired(false);
+        for (int i = 0; i < CORE_CLASSES.length; i++) {
+            kryo.register(CORE_CLASSES[i], CORE_ID_BASE + i);
+        }
+        kryo.getContext().put(REGISTERED, 0);
         return kryo;
-    });
+    }
+
+    /**
+     * 从池子里借一个Kryo，顺便补上借出以后新注册的服务类
+     */
+    private static Kryo borrow() {
+        Kryo kryo = pool.borrow();
+        int registered = (Integer) kryo.getContext().get(REGISTERED);
+        if (registered < serviceClasses.size()) {
+            List<Class<?>> classes = serviceClasses;
+            for (int i = registered; i < classes.size(); i++) {
+                Class<?> clazz = classes.get(i);
+                kryo.register(clazz, serviceClassId(clazz));
+            }
+            kryo.getContext().put(REGISTERED, classes.size());
+        }
+        return kryo;
+    }
+
+    /**
+     * 注册服务接口用到的类：方法的参数和返回值类型、泛型参数、数组元素类型，以及这些类的字段类型
+     * 服务端发布服务、客户端生成代理时调用，两边对同一个接口得到同样的类和编号
+     */
+    public static void registerServiceClasses(Class<?> serviceClass) {
+        if (!REGISTER_SERVICE_CLASSES) {
+            return;
+        }
+        for (Method method : serviceClass.getMethods()) {
+            for (Type type : method.getGenericParameterTypes()) {
+                collect(type);
+            }
+            collect(method.getGenericReturnType());
+        }
+    }
+
+    private static void collect(Type type) {
+        if (type instanceof ParameterizedType) {
+            collect(((ParameterizedType) type).getRawType());
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                collect(argument);
+            }
+        } else if (type instanceof GenericArrayType) {
+            collect(((GenericArrayType) type).getGenericComponentType());
+        } else if (type instanceof WildcardType) {
+            for (Type bound : ((WildcardType) type).getUpperBounds()) {
+                collect(bound);
+            }
+        } else if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            if (clazz.isArray()) {
+                collect(clazz.getComponentType());
+                return;
+            }
+            // JDK的类、接口和抽象类不注册：实际写出的是具体子类，JDK常用类已经在CORE_CLASSES里
+            if (clazz.isPrimitive() || clazz.getName().startsWith("java.") || clazz.getName().startsWith("javax.")
+                    || (!clazz.isEnum() && (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())))
+                    || !visited.add(clazz)) {
+                return;
+            }
+            register(clazz);
+            for (Class<?> c = clazz; c != null && c != Object.class && !c.isEnum(); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                        collect(field.getGenericType());
+                    }
+                }
+            }
+        }
+    }
+
+    private static synchronized void register(Class<?> clazz) {
+        int id = serviceClassId(clazz);
+        Class<?> existing = serviceClassIds.putIfAbsent(id, clazz);
+        if (existing != null) {
+            // 极少见，两个类的哈希低20位相同；谁先注册谁拿到编号的话两端可能不一致，把对方的类解析成另一个类
+            logger.error("类 {} 和 {} 的Kryo编号 {} 冲突", existing.getName(), clazz.getName(), id);
+            throw new SerializeException(String.format("类 %s 和 %s 的Kryo编号 %d 冲突，请配置 %s%s=编号 指定其中一个类的编号(客户端和服务端配置相同)",
+                    existing.getName(), clazz.getName(), id, SERVICE_ID_PREFIX, clazz.getName()));
+        }
+        serviceClasses.add(clazz);
+    }
+
+    /**
+     * 配置了固定编号的用配置的编号，否则由类名哈希得到
+     */
+    private static int serviceClassId(Class<?> clazz) {
+        int id = RpcConfig.getInt(SERVICE_ID_PREFIX + clazz.getName(), 0);
+        if (id == 0) {
+            return SERVICE_ID_BASE + (MurmurHash3.hash32(clazz.getName()) & SERVICE_ID_MASK);
+        }
+        if (id < SERVICE_ID_BASE) {
+            throw new SerializeException(String.format("类 %s 配置的Kryo编号 %d 不能小于 %d", clazz.getName(), id, SERVICE_ID_BASE));
+        }
+        return id;
+    }
 
     /**
      * 序列化
      */
     @Override
     public byte[] serialize(Object obj) {
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            Output output = new Output(byteArrayOutputStream)) {
-            // 从ThreadLocal获取Kryo对象
-            Kryo kryo = kryoThreadLocal.get();
+        Output output = bytesOutputThreadLocal.get();
+        Kryo kryo = borrow();
+        try {
+            output.clear();
             // 将待序列化对象写入OutPut对象
             kryo.writeObject(output, obj);
-            // 从ThreadLocal中移除Kryo
-            kryoThreadLocal.remove();
             // 最后把OutPut转换为Byte数组
             return output.toBytes();
         } catch (Exception e) {
             logger.error("序列化时发生错误: " + e);
             throw new SerializeException("序列化时发生错误");
+        } finally {
+            pool.release(kryo);
+            if (output.getBuffer().length > MAX_RETAINED_BUFFER) {
+                bytesOutputThreadLocal.remove();
+            }
+        }
+    }
+
+    /**
+     * 流式序列化，直接写入ByteBuf
+     * Output的缓冲区满了或者写完时flush到ByteBufOutputStream，数据只拷贝一次，不再经过ByteArrayOutputStream
+     */
+    @Override
+    public void serialize(Object obj, ByteBuf out) {
+        Output output = outputThreadLocal.get();
+        Kryo kryo = borrow();
+        try {
+            output.setOutputStream(new ByteBufOutputStream(out));
+            kryo.writeObject(output, obj);
+            output.flush();
+        } catch (Exception e) {
+            logger.error("序列化时发生错误: " + e);
+            throw new SerializeException("序列化时发生错误");
+        } finally {
+            pool.release(kryo);
+            // 解除对ByteBuf的引用，避免线程一直持有已经写出去的缓冲区
+            output.setOutputStream(null);
         }
     }
 
@@ -53,18 +258,52 @@ public class KryoSerializer implements CommonSerializer{
      */
     @Override
     public Object deserialize(byte[] bytes, Class<?> clazz) {
-        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            Input input = new Input(byteArrayInputStream)) {
-            // 从ThreadLocal中获取Kryo对象
-            Kryo kryo = kryoThreadLocal.get();
+        Input input = inputThreadLocal.get();
+        Kryo kryo = borrow();
+        try {
+            input.setBuffer(bytes);
             // kryo反序列化对象
+            return kryo.readObject(input, clazz);
+        } catch (Exception e) {
+            logger.error("反序列化时发生了错误" + e);
+            throw new SerializeException("反序列化时发生了错误");
+        } finally {
+            pool.release(kryo);
+            input.setBuffer(EMPTY_BYTES);
+        }
+    }
+
+    /**
+     * 直接从ByteBuf反序列化
+     */
+    @Override
+    public Object deserialize(ByteBuf in, Class<?> clazz) {
+        int length = in.readableBytes();
+        Input input;
+        if (in.hasArray()) {
+            input = inputThreadLocal.get();
+            input.setBuffer(in.array(), in.arrayOffset() + in.readerIndex(), length);
+        } else {
+            ByteBufferInput byteBufferInput = byteBufferInputThreadLocal.get();
+            byteBufferInput.setBuffer(in.nioBuffer(in.readerIndex(), length));
+            input = byteBufferInput;
+        }
+        Kryo kryo = borrow();
+        try {
             Object o = kryo.readObject(input, clazz);
-            // ThreadLocal移除Kryo
-            kryoThreadLocal.remove();
+            in.skipBytes(length);
             return o;
         } catch (Exception e) {
             logger.error("反序列化时发生了错误" + e);
             throw new SerializeException("反序列化时发生了错误");
+        } finally {
+            pool.release(kryo);
+            // 不再引用解码器的缓冲区
+            if (input instanceof ByteBufferInput) {
+                ((ByteBufferInput) input).setBuffer(EMPTY_BUFFER);
+            } else {
+                input.setBuffer(EMPTY_BYTES);
+            }
         }
     }
 
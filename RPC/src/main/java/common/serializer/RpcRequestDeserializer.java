@@ -0,0 +1,92 @@
+package common.serializer;
+
+import common.reqeust.RpcRequest;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RpcRequest的流式反序列化，JSON和Smile共用
+ * 参数数组声明的是Object[]，按默认方式只能解析成Map、List这些通用类型，原来要把每个参数写回字节数组再按paramTypes解析一遍
+ * 这里边读边绑定：paramTypes在parameters前面时(自己的客户端按@JsonPropertyOrder写出)，每个参数直接按声明的类型解析
+ * 其他语言的客户端把parameters写在前面时，先把参数数组原样缓存成TokenBuffer，读到paramTypes以后再绑定，不会再解析一遍文本
+ */
+public class RpcRequestDeserializer extends StdDeserializer<RpcRequest> {
+
+    public RpcRequestDeserializer() {
+        super(RpcRequest.class);
+    }
+
+    @Override
+    public RpcRequest deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        RpcRequest rpcRequest = new RpcRequest();
+        TokenBuffer pending = null;
+        JsonToken token = p.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            token = p.nextToken();
+        }
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String field = p.getCurrentName();
+            boolean isNull = p.nextToken() == JsonToken.VALUE_NULL;
+            switch (field) {
+                case "requestId":
+                    rpcRequest.setRequestId(p.getValueAsString());
+                    break;
+                case "interfaceName":
+                    rpcRequest.setInterfaceName(p.getValueAsString());
+                    break;
+                case "methodName":
+                    rpcRequest.setMethodName(p.getValueAsString());
+                    break;
+                case "heartBeat":
+                    rpcRequest.setHeartBeat(isNull ? null : p.getValueAsBoolean());
+                    break;
+                case "paramTypes":
+                    rpcRequest.setParamTypes(isNull ? null : ctxt.readValue(p, Class[].class));
+                    break;
+                case "parameters":
+                    if (isNull) {
+                        rpcRequest.setParameters(null);
+                    } else if (rpcRequest.getParamTypes() != null) {
+                        rpcRequest.setParameters(readParameters(p, ctxt, rpcRequest.getParamTypes()));
+                    } else {
+                        pending = new TokenBuffer(p, ctxt);
+                        pending.copyCurrentStructure(p);
+                    }
+                    break;
+                default:
+                    // 其他语言的客户端可能多带字段，跳过
+                    p.skipChildren();
+            }
+        }
+        if (pending != null) {
+            try (JsonParser buffered = pending.asParser(p.getCodec())) {
+                buffered.nextToken();
+                rpcRequest.setParameters(readParameters(buffered, ctxt, rpcRequest.getParamTypes()));
+            }
+        }
+        return rpcRequest;
+    }
+
+    /**
+     * 按声明的参数类型逐个解析参数，没有paramTypes或者参数比类型多时按Object解析
+     */
+    private static Object[] readParameters(JsonParser p, DeserializationContext ctxt, Class<?>[] paramTypes) throws IOException {
+        if (p.currentToken() != JsonToken.START_ARRAY) {
+            return (Object[]) ctxt.handleUnexpectedToken(Object[].class, p);
+        }
+        List<Object> parameters = new ArrayList<>(paramTypes == null ? 4 : paramTypes.length);
+        for (JsonToken token = p.nextToken(); token != JsonToken.END_ARRAY; token = p.nextToken()) {
+            int i = parameters.size();
+            Class<?> type = paramTypes != null && i < paramTypes.length ? paramTypes[i] : Object.class;
+            parameters.add(token == JsonToken.VALUE_NULL ? null : ctxt.readValue(p, type));
+        }
+        return parameters.toArray();
+    }
+}
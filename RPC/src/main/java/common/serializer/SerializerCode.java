@@ -11,7 +11,8 @@ import lombok.Getter;
 public enum SerializerCode {
 
     KRYO(0),
-    JSON(1);
+    JSON(1),
+    SMILE(2);
 
     private final int code;
 }
@@ -0,0 +1,64 @@
+package common.serializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * 序列化器注册表，每个编号一个单例，编解码时按协议头里的编号直接取数组，不再每条消息new一个序列化器
+ * 内置Kryo、JSON、Smile，其他序列化器实现CommonSerializer后写进META-INF/services/common.serializer.CommonSerializer，
+ * 由ServiceLoader加载，编解码器不用改
+ * V2协议头只留了4位给序列化器编号，所以编号范围是0~15，内置的编号不能被覆盖
+ */
+public class SerializerRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerializerRegistry.class);
+
+    public static final int MAX_CODE = 0x0F;
+
+    private static final CommonSerializer[] serializers = new CommonSerializer[MAX_CODE + 1];
+
+    static {
+        register(new KryoSerializer());
+        register(new JsonSerializer());
+        register(new SmileSerializer());
+        for (CommonSerializer serializer : ServiceLoader.load(CommonSerializer.class)) {
+            register(serializer);
+        }
+    }
+
+    private static void register(CommonSerializer serializer) {
+        int code = serializer.getCode();
+        if (code < 0 || code > MAX_CODE) {
+            logger.error("序列化器 {} 的编号 {} 超出范围", serializer.getClass().getName(), code);
+        } else if (serializers[code] != null) {
+            logger.error("序列化器 {} 的编号 {} 已被 {} 使用", serializer.getClass().getName(), code,
+                    serializers[code].getClass().getName());
+        } else {
+            serializers[code] = serializer;
+        }
+    }
+
+    /**
+     * 按编号获取序列化器，没有时返回null
+     */
+    public static CommonSerializer get(int code) {
+        return code < 0 || code > MAX_CODE ? null : serializers[code];
+    }
+
+    /**
+     * 已注册的全部序列化器编号，从小到大
+     */
+    public static List<Integer> codes() {
+        List<Integer> codes = new ArrayList<>();
+        for (int code = 0; code <= MAX_CODE; code++) {
+            if (serializers[code] != null) {
+                codes.add(code);
+            }
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,26 @@
+package common.serializer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 流式序列化器，直接把对象写进Netty的ByteBuf
+ * 相比CommonSerializer先序列化成byte[]再拷贝进ByteBuf，少了中间数组的分配和一次拷贝
+ * 编码器发现序列化器实现了这个接口时，会先占住长度字段，把数据原地写进去，最后再回填长度
+ */
+public interface StreamSerializer extends CommonSerializer {
+
+    /**
+     * 将对象序列化后追加写入out，从out当前的writerIndex开始写
+     * @param obj 待序列化对象
+     * @param out 目标缓冲区，一般是编码器从池化分配器拿到的ByteBuf
+     */
+    void serialize(Object obj, ByteBuf out);
+
+    /**
+     * 从in中反序列化对象，读取in的全部可读字节
+     * 解码器传进来的是累积缓冲区上切出来的slice，实现类应该直接读它，不要再拷贝成byte数组
+     * @param in 只包含一个消息体的缓冲区
+     * @param clazz 对象类型
+     */
+    Object deserialize(ByteBuf in, Class<?> clazz);
+}
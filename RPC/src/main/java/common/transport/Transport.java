@@ -0,0 +1,123 @@
+package common.transport;
+
+import common.config.RpcConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 传输层选择
+ * Linux上能加载epoll本地库时使用Epoll*系列的类，系统调用更少，还能用上SO_REUSEPORT、TCP_QUICKACK等epoll独有的选项
+ * 其他平台或者本地库加载失败时退回NIO
+ */
+public final class Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    // 是否优先使用epoll，设为false可以强制使用NIO
+    private static final boolean PREFER_EPOLL = RpcConfig.getBoolean("rpc.transport.epoll", true);
+
+    // epoll使用边缘触发还是水平触发
+    private static final boolean EDGE_TRIGGERED = RpcConfig.getBoolean("rpc.transport.epoll.edgeTriggered", true);
+
+    // 收到数据后立即回ACK，不等延迟ACK的定时器，对请求-响应式的小包能明显降低延迟
+    private static final boolean QUICK_ACK = RpcConfig.getBoolean("rpc.transport.epoll.quickAck", true);
+
+    // 服务端用SO_REUSEPORT在同一个端口上绑定几个监听channel，由内核在它们之间分配新连接
+    private static final int ACCEPTORS = RpcConfig.getInt("rpc.server.acceptors", 1);
+
+    // 合并flush：同一轮事件循环里的多次flush只做一次系统调用，连续这么多次flush还没合并掉就立即flush一次
+    private static final boolean FLUSH_CONSOLIDATION = RpcConfig.getBoolean("rpc.transport.flushConsolidation", true);
+    private static final int MAX_PENDING_FLUSHES = RpcConfig.getInt("rpc.transport.flushConsolidation.maxPending", 256);
+
+    public static final boolean EPOLL = PREFER_EPOLL && Epoll.isAvailable();
+
+    static {
+        if (EPOLL) {
+            logger.info("使用epoll传输");
+        } else if (PREFER_EPOLL) {
+            logger.info("epoll不可用，使用NIO传输: {}", String.valueOf(Epoll.unavailabilityCause()));
+        } else {
+            logger.info("使用NIO传输");
+        }
+    }
+
+    private Transport() {
+    }
+
+    /**
+     * @param threads 线程数，0表示使用Netty的默认值(CPU核数 * 2)
+     */
+    public static EventLoopGroup newEventLoopGroup(int threads) {
+        return EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public static Class<? extends SocketChannel> socketChannelClass() {
+        return EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public static Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * 服务端需要绑定的监听channel个数，只有epoll支持SO_REUSEPORT，NIO下固定为1
+     */
+    public static int acceptorCount() {
+        return EPOLL ? Math.max(1, ACCEPTORS) : 1;
+    }
+
+    /**
+     * 在pipeline最前面加上合并flush的handler
+     * 业务线程调用writeAndFlush时，写操作作为任务排进EventLoop，同一轮里排进来的写最后只flush一次；
+     * 正在读的时候写出的响应等这一轮读完再一起flush
+     */
+    public static void consolidateFlushes(ChannelPipeline pipeline) {
+        if (FLUSH_CONSOLIDATION) {
+            pipeline.addFirst(new FlushConsolidationHandler(MAX_PENDING_FLUSHES, true));
+        }
+    }
+
+    /**
+     * 客户端的epoll专有选项
+     */
+    public static Bootstrap configure(Bootstrap bootstrap) {
+        if (EPOLL) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode())
+                    .option(EpollChannelOption.TCP_QUICKACK, QUICK_ACK);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * 服务端的epoll专有选项
+     */
+    public static ServerBootstrap configure(ServerBootstrap serverBootstrap) {
+        if (EPOLL) {
+            serverBootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode())
+                    .option(EpollChannelOption.SO_REUSEPORT, acceptorCount() > 1)
+                    .childOption(EpollChannelOption.EPOLL_MODE, epollMode())
+                    .childOption(EpollChannelOption.TCP_QUICKACK, QUICK_ACK);
+        }
+        return serverBootstrap;
+    }
+
+    private static EpollMode epollMode() {
+        return EDGE_TRIGGERED ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+    }
+}
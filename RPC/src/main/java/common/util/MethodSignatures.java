@@ -0,0 +1,55 @@
+package common.util;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 服务接口的方法表
+ * 方法签名按字典序排好，和getMethods的返回顺序无关，同一个接口在不同的JVM上得到的结果一样
+ * 服务端把方法表的哈希写进注册中心，客户端据此判断两边的接口版本是否一致
+ */
+public class MethodSignatures {
+
+    /**
+     * 接口所有公开方法的签名，形如 hello(java.lang.String,int)java.lang.String，已排序
+     */
+    public static List<String> of(Class<?> serviceClass) {
+        List<String> signatures = new ArrayList<>();
+        for (Method method : serviceClass.getMethods()) {
+            signatures.add(signature(method));
+        }
+        Collections.sort(signatures);
+        return signatures;
+    }
+
+    public static String signature(Method method) {
+        return key(method.getName(), method.getParameterTypes()) + method.getReturnType().getTypeName();
+    }
+
+    /**
+     * 按方法名和参数类型生成的键，形如 hello(java.lang.String,int)，不含返回值，服务端按它查找调用器
+     */
+    public static String key(String methodName, Class<?>[] paramTypes) {
+        StringBuilder sb = new StringBuilder(methodName).append('(');
+        if (paramTypes != null) {
+            for (int i = 0; i < paramTypes.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(paramTypes[i].getTypeName());
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * 方法表的哈希，8位十六进制
+     */
+    public static String hash(Class<?> serviceClass) {
+        byte[] data = String.join("\n", of(serviceClass)).getBytes(StandardCharsets.UTF_8);
+        return String.format("%08x", MurmurHash3.hash32(data, 0, data.length, 0));
+    }
+}
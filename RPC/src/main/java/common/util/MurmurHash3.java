@@ -0,0 +1,55 @@
+package common.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MurmurHash3 x86_32
+ * 分布比String.hashCode均匀得多，相近的字符串(比如只差一个端口号)也会落到环上相距很远的位置
+ */
+public class MurmurHash3 {
+
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    public static int hash32(String s) {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        return hash32(data, 0, data.length, 0);
+    }
+
+    public static int hash32(byte[] data, int offset, int length, int seed) {
+        int h = seed;
+        int end = offset + (length & ~3);
+        // 每次处理4字节
+        for (int i = offset; i < end; i += 4) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+            k *= C1;
+            k = Integer.rotateLeft(k, 15);
+            k *= C2;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        // 剩下不足4字节的尾巴
+        int k = 0;
+        switch (length & 3) {
+            case 3:
+                k = (data[end + 2] & 0xff) << 16;
+            case 2:
+                k |= (data[end + 1] & 0xff) << 8;
+            case 1:
+                k |= data[end] & 0xff;
+                k *= C1;
+                k = Integer.rotateLeft(k, 15);
+                k *= C2;
+                h ^= k;
+            default:
+        }
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
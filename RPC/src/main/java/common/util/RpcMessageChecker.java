@@ -25,13 +25,14 @@ public class RpcMessageChecker {
             throw new RpcException(RpcError.SERVICE_INVOCATION_FAILURE, INTERFACE_NAME + ":" + rpcRequest.getInterfaceName());
         }
         // 如果响应号与请求号不同
-        if (!rpcRequest.getRequestId().equals(rpcResponse.getRequestId())) {
+        if (rpcRequest.getSequenceId() != rpcResponse.getSequenceId()) {
             throw new RpcException(RpcError.RESPONSE_NOT_MATCH, INTERFACE_NAME + ":" + rpcRequest.getInterfaceName());
         }
         // 调用失败
-        if (rpcResponse.getStatusCode() == null || !rpcResponse.getStatusCode().equals(ResponseCode.SUCCESS)) {
+        if (rpcResponse.getStatusCode() == null || rpcResponse.getStatusCode() != ResponseCode.SUCCESS.getCode()) {
             logger.error("调用服务失败, 该服务名为: {}", rpcRequest.getInterfaceName(), rpcResponse);
-            throw new RpcException(RpcError.SERVICE_INVOCATION_FAILURE, INTERFACE_NAME + ":" + rpcRequest.getInterfaceName());
+            throw new RpcException(RpcError.SERVICE_INVOCATION_FAILURE, INTERFACE_NAME + ":" + rpcRequest.getInterfaceName()
+                    + ", " + rpcResponse.getMessage());
         }
     }
 
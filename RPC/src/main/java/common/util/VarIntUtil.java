@@ -0,0 +1,73 @@
+package common.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * 变长整数(varint)的读写，和protobuf的编码方式一致
+ * 每个字节低7位存数据，最高位为1表示后面还有字节，小于128的数只占1个字节
+ */
+public class VarIntUtil {
+
+    // 一个int编码成varint最多占的字节数，也是setPaddedVarInt固定占的字节数
+    public static final int PADDED_SIZE = 5;
+
+    // readVarInt表示字节还不够的返回值
+    public static final long INCOMPLETE = -1;
+
+    /**
+     * 写入一个非负int
+     */
+    public static void writeVarInt(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * 在index处写入固定占5个字节的varint，不改变writerIndex
+     * 前4个字节都带继续位，高位补0，readVarInt能正常读出来；用于先占位、写完数据再回填长度的场景
+     */
+    public static void setPaddedVarInt(ByteBuf out, int index, int value) {
+        for (int i = 0; i < PADDED_SIZE - 1; i++) {
+            out.setByte(index + i, (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.setByte(index + PADDED_SIZE - 1, value);
+    }
+
+    /**
+     * 读取一个varint
+     * 返回long：5个字节最多35位，完整读到的值总是非负的，不会和表示字节不够的INCOMPLETE混淆；
+     * 超过int范围的值原样返回，由调用方当作非法长度拒绝
+     * @return 读到的值；如果in里的字节还不够组成一个完整的varint，返回INCOMPLETE，此时readerIndex的位置不确定，调用方需要自己reset
+     */
+    public static long readVarInt(ByteBuf in) {
+        long result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.isReadable()) {
+                return INCOMPLETE;
+            }
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("varint超过5个字节");
+    }
+
+    /**
+     * 计算一个非负int编码成varint后占几个字节
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
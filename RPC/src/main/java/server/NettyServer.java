@@ -4,15 +4,15 @@ import common.config.CommonDecoder;
 import common.config.CommonEncoder;
 import common.config.RpcException;
 import server.handler.NettyServerHandler;
-import server.registry.Impl.ZkServiceRegistry;
+import server.registry.RegistryFactory;
 import server.registry.ServiceProvider;
 import server.registry.ServiceRegistry;
+import common.serializer.CommonSerializer;
 import common.serializer.KryoSerializer;
+import common.transport.Transport;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -20,6 +20,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class NettyServer implements RpcServer{
@@ -32,9 +37,12 @@ public class NettyServer implements RpcServer{
 
     private int port;
 
+    // 已经发布到注册中心的服务接口，重复发布会在注册中心里多出一份临时节点
+    private final Set<Class<?>> published = ConcurrentHashMap.newKeySet();
+
     public NettyServer(ServiceProvider serviceProvider, int port) {
         this.serviceProvider = serviceProvider;
-        this.serviceRegistry = new ZkServiceRegistry();
+        this.serviceRegistry = RegistryFactory.get().createServerRegistry();
         this.port = port;
     }
 
@@ -42,15 +50,18 @@ public class NettyServer implements RpcServer{
      * 启动服务器
      * 心跳机制
      *  - 服务端每30秒进行一次读检测，如果30秒内ChannelRead()方法没有被调用，则触发一次userEventTrigger方法
+     * 传输层
+     *  - Linux上优先使用epoll，开启SO_REUSEPORT时在同一端口上绑定多个监听channel，每个由一个boss线程负责accept
      */
     @Override
     public void start() {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        int acceptors = Transport.acceptorCount();
+        EventLoopGroup bossGroup = Transport.newEventLoopGroup(acceptors);
+        EventLoopGroup workerGroup = Transport.newEventLoopGroup(0);
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap();
             serverBootstrap.group(bossGroup, workerGroup)   // 指定事件循环组
-                    .channel(NioServerSocketChannel.class)  // 指定channel实现类
+                    .channel(Transport.serverSocketChannelClass())  // 指定channel实现类，epoll或NIO
                     .handler(new LoggingHandler(LogLevel.INFO))
                     .option(ChannelOption.SO_BACKLOG, 256)  // tcp内部维护两个连接队列，一个是sync queue，另一个是accept queue，如果连接数超过256，就拒绝连接
                     .option(ChannelOption.SO_KEEPALIVE, true)   // 开启心跳机制
@@ -65,14 +76,23 @@ public class NettyServer implements RpcServer{
                         protected void initChannel(SocketChannel ch) throws Exception {
                             ChannelPipeline pipeline = ch.pipeline();
                             // pipeline.addLast(new CommonEncoder(new JsonSerializer()))   // 出站
-                            pipeline.addLast(new CommonEncoder(new KryoSerializer()))   // 出站
+                            pipeline.addLast(new CommonEncoder(CommonSerializer.getByCode(CommonSerializer.DEFAULT_SERIALIZER)))   // 出站，按请求的序列化器回写
                                     .addLast(new IdleStateHandler(30, 0, 0, TimeUnit.SECONDS))
                                     .addLast(new CommonDecoder())   // 入站
                                     .addLast(new NettyServerHandler(serviceProvider)); // 入站
+                            // 业务线程写回的响应合并flush
+                            Transport.consolidateFlushes(pipeline);
                         }
                     });
-            ChannelFuture future = serverBootstrap.bind(port).sync();   // ip即本机
-            future.channel().closeFuture().sync();
+            Transport.configure(serverBootstrap);
+            List<Channel> serverChannels = new ArrayList<>(acceptors);
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add(serverBootstrap.bind(port).sync().channel());  // ip即本机
+            }
+            logger.info("服务器启动，端口: {}，监听channel数: {}", port, acceptors);
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
         } catch (InterruptedException e) {
             logger.error("启动服务器时发生错误", e);
         } finally {
@@ -88,8 +108,35 @@ public class NettyServer implements RpcServer{
     public <T> void publishService(Object service, Class<T> serviceClass) throws RpcException {
         // 注册服务到本地map
         serviceProvider.register(service);
-        // 注册服务到zooKeeper
-        serviceRegistry.register(serviceClass.getCanonicalName(), new InetSocketAddress("127.0.0.1", port));
-        logger.info("已注册服务 {} 到ZooKeeper", serviceClass.getCanonicalName());
+        // 接口用到的类注册到Kryo，按编号传输
+        KryoSerializer.registerServiceClasses(serviceClass);
+        // 注册服务到注册中心
+        if (!published.add(serviceClass)) {
+            logger.info("服务 {} 已经发布过，跳过", serviceClass.getCanonicalName());
+            return;
+        }
+        serviceRegistry.registerAll(Collections.singletonList(serviceClass), new InetSocketAddress("127.0.0.1", port));
+        logger.info("已注册服务 {} 到注册中心", serviceClass.getCanonicalName());
+    }
+
+    /**
+     * 批量注册服务容器里的全部服务，只需要和注册中心交互一次
+     * 已经用publishService发布过的接口跳过
+     */
+    @Override
+    public void publishServices() throws RpcException {
+        List<Class<?>> serviceClasses = new ArrayList<>();
+        for (Class<?> serviceClass : serviceProvider.getServiceInterfaces()) {
+            if (published.add(serviceClass)) {
+                KryoSerializer.registerServiceClasses(serviceClass);
+                serviceClasses.add(serviceClass);
+            }
+        }
+        if (serviceClasses.isEmpty()) {
+            logger.info("服务容器里的服务都已经发布过");
+            return;
+        }
+        serviceRegistry.registerAll(serviceClasses, new InetSocketAddress("127.0.0.1", port));
+        logger.info("已注册 {} 个服务到注册中心", serviceClasses.size());
     }
 }
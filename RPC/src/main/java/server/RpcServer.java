@@ -7,4 +7,7 @@ public interface RpcServer {
     void start();
 
     <T> void publishService(Object service, Class<T> serviceClass) throws RpcException;
+
+    // 把服务容器里的全部服务一次性发布到注册中心
+    void publishServices() throws RpcException;
 }
@@ -1,7 +1,12 @@
 package server.handler;
 
+import common.annotation.Compress;
+import common.compress.CompressType;
+import common.config.Handshake;
+import common.config.ResponseCode;
 import common.reqeust.RpcRequest;
 import common.config.RpcException;
+import server.registry.MethodInvoker;
 import server.registry.ServiceProvider;
 import common.response.RpcResponse;
 import io.netty.channel.ChannelHandlerContext;
@@ -12,8 +17,11 @@ import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * 接收RpcRequest，并执行接口的方法调用，再将调用结果返回，封装成RpcResponse发出去
@@ -24,7 +32,11 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<RpcRequest>
     private static RequestHandler requestHandler;
     private ServiceProvider serviceProvider;
 
-    private static ExecutorService executorService;
+    // 业务线程池，按服务和方法做舱壁隔离
+    private static final ServiceExecutors executors = new ServiceExecutors();
+
+    // 每个服务接口配置的压缩算法，第一次调用时从接口上的@Compress注解读出来
+    private static final Map<String, CompressType> compressTypes = new ConcurrentHashMap<>();
 
     public NettyServerHandler (ServiceProvider serviceProvider) {
         this.serviceProvider = serviceProvider;
@@ -32,7 +44,6 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<RpcRequest>
 
     static {
         requestHandler = new RequestHandler();
-        executorService = Executors.newFixedThreadPool(1);
     }
 
     /**
@@ -56,39 +67,149 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<RpcRequest>
     /**
      * 如果channelRead中执行业务逻辑过久，会阻塞整个worker线程，因为channelHandler链的整个流程是同步的
      * 因此引入线程池来异步执行业务逻辑，避免阻塞
+     * 线程池满了不默默丢掉请求，而是马上回一个BUSY响应，客户端可以立刻失败或者换一个节点重试
      */
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, RpcRequest msg) throws Exception {
+        // 握手请求直接在IO线程上回复方法编号表
+        if (Handshake.isRequest(msg)) {
+            logger.info("接收到客户端握手请求，下发方法编号表");
+            ctx.writeAndFlush(Handshake.response(serviceProvider.getMethodKeys()));
+            return;
+        }
         if (msg.getHeartBeat()) {
             logger.info("接收到客户端心跳包...");
             return;
         }
+        // 按编号调用的请求先补上接口名和方法名，舱壁选择和日志都要用
+        if (msg.getMethodId() != 0) {
+            try {
+                MethodInvoker invoker = serviceProvider.getInvoker(msg.getMethodId());
+                msg.setInterfaceName(invoker.getServiceClass().getCanonicalName());
+                msg.setMethodName(invoker.getMethod().getName());
+                msg.setParamTypes(invoker.getMethod().getParameterTypes());
+            } catch (RpcException e) {
+                logger.error("找不到方法编号: {}, 请求号: {}", msg.getMethodId(), msg.getSequenceId());
+                reply(ctx, msg, RequestHandler.failure(msg, e), CompressType.NONE);
+                return;
+            }
+        }
         // 开启一个线程异步执行这个任务，防止channel堵塞
-        executorService.submit(() -> {
+        try {
+            executors.execute(msg.getInterfaceName(), msg.getMethodName(), () -> handle(ctx, msg));
+        } catch (RejectedExecutionException e) {
+            logger.warn("线程池已满，拒绝请求: {}#{}, 请求号: {}",
+                    msg.getInterfaceName(), msg.getMethodName(), msg.getSequenceId());
+            RpcResponse<Object> rpcResponse = RpcResponse.fail(ResponseCode.BUSY, msg);
+            if (!msg.isOneway() && ctx.channel().isActive()) {
+                ctx.writeAndFlush(rpcResponse);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * 在业务线程池里执行一次调用
+     * 找不到服务或者方法、业务方法抛出异常时都回失败响应，客户端不用等到超时
+     */
+    private void handle(ChannelHandlerContext ctx, RpcRequest msg) {
+        try {
+            // 排队期间已经过了客户端的截止时间，客户端不会再等这个结果，直接丢弃不执行
+            if (msg.getDeadline() != 0 && System.nanoTime() - msg.getDeadline() > 0) {
+                logger.warn("请求已超过截止时间, 丢弃: {}#{}, 请求号: {}",
+                        msg.getInterfaceName(), msg.getMethodName(), msg.getSequenceId());
+                return;
+            }
+            logger.info("服务端接收到请求: {}", msg);
+            String interfaceName = msg.getInterfaceName();
+            MethodInvoker invoker;
+            Object response;
             try {
-                logger.info("服务端接收到请求: {}", msg);
-                String interfaceName = msg.getInterfaceName();
-                // 去注册中心拉取服务实例
-                Object service = serviceProvider.getService(interfaceName);
-                // 执行方法调用并获得调用结果
-                Object response = requestHandler.handle(msg, service);
-                // 将响应结果写入ChannelHandler上下文
-                // ChannelFuture future = ctx.writeAndFlush(RpcResponse.success(response, msg.getRequestId()));
-                // ChannelFuture future = ctx.writeAndFlush();
-                // 使用监听器监测数据包是否已发出，再关闭通道
-                // future.addListener(ChannelFutureListener.CLOSE);
-
-                if (ctx.channel().isActive() && ctx.channel().isWritable()) {
-                    ctx.writeAndFlush(RpcResponse.success(response, msg.getRequestId()));
-                } else {
-                    logger.error("通道不可写");
-                }
+                // 取出注册服务时生成好的调用器
+                invoker = requestHandler.lookup(msg, serviceProvider);
             } catch (RpcException e) {
-                logger.error("拉取服务时出现异常", e);
-            } finally {
-                // 引用计数-1，释放内存
-                ReferenceCountUtil.release(msg);
+                logger.error("找不到要调用的方法: {}#{}", interfaceName, msg.getMethodName(), e);
+                reply(ctx, msg, RequestHandler.failure(msg, e), CompressType.NONE);
+                return;
             }
+            CompressType compressType = compressTypeOf(invoker.getServiceClass());
+            try {
+                // 执行方法调用并获得调用结果
+                response = requestHandler.handle(msg, invoker);
+            } catch (Throwable e) {
+                logger.error("方法调用失败: {}#{}", interfaceName, msg.getMethodName(), e);
+                reply(ctx, msg, RequestHandler.failure(msg, e), compressType);
+                return;
+            }
+
+            // 单向调用执行完就结束了，不构造响应
+            if (msg.isOneway()) {
+                return;
+            }
+            // 服务实现返回的是CompletableFuture时，不占着线程池等它，完成时再写回响应
+            if (response instanceof CompletableFuture) {
+                ((CompletableFuture<?>) response).whenComplete((value, e) -> {
+                    if (e == null) {
+                        writeResponse(ctx, RpcResponse.success(value, msg), compressType);
+                    } else {
+                        logger.error("异步方法调用失败: {}#{}", interfaceName, msg.getMethodName(), e);
+                        writeResponse(ctx, RequestHandler.failure(msg,
+                                e instanceof CompletionException && e.getCause() != null ? e.getCause() : e), compressType);
+                    }
+                });
+            } else {
+                writeResponse(ctx, RpcResponse.success(response, msg), compressType);
+            }
+        } finally {
+            // 引用计数-1，释放内存
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * 单向调用的请求不回响应，失败只在上面记日志
+     */
+    private static void reply(ChannelHandlerContext ctx, RpcRequest msg, RpcResponse<Object> rpcResponse, CompressType compressType) {
+        if (!msg.isOneway()) {
+            writeResponse(ctx, rpcResponse, compressType);
+        }
+    }
+
+    /**
+     * 连接还在就写回响应
+     * 出站缓冲超过高水位时也照样写：批量请求会一下子产生很多响应，丢掉的话客户端只能等到超时
+     * 出站缓冲的大小由channelWritabilityChanged里暂停读取来限制
+     */
+    private static void writeResponse(ChannelHandlerContext ctx, RpcResponse<Object> rpcResponse, CompressType compressType) {
+        if (ctx.channel().isActive()) {
+            rpcResponse.setCompressType(compressType);
+            ctx.writeAndFlush(rpcResponse);
+        } else {
+            logger.error("连接已断开，丢弃响应");
+        }
+    }
+
+    /**
+     * 背压：出站缓冲超过高水位时停止从这个连接读新请求，降到低水位以下再恢复
+     * 已经在线程池里的请求照常回写，缓冲最多再涨这一批响应的大小，不会随客户端持续发送无限增长
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        boolean writable = ctx.channel().isWritable();
+        if (!writable) {
+            logger.warn("连接出站缓冲超过高水位，暂停读取: {}", ctx.channel().remoteAddress());
+        }
+        ctx.channel().config().setAutoRead(writable);
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * 读取被调用的服务接口上的@Compress注解
+     */
+    private static CompressType compressTypeOf(Class<?> serviceClass) {
+        return compressTypes.computeIfAbsent(serviceClass.getCanonicalName(), name -> {
+            Compress compress = serviceClass.getAnnotation(Compress.class);
+            return compress == null ? CompressType.NONE : compress.value();
         });
     }
 
@@ -1,56 +1,57 @@
 package server.handler;
 
-import common.reqeust.RpcRequest;
 import common.config.ResponseCode;
+import common.config.RpcError;
+import common.config.RpcException;
+import common.reqeust.RpcRequest;
 import common.response.RpcResponse;
+import server.registry.MethodInvoker;
+import server.registry.ServiceProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-
 public class RequestHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(RequestHandler.class);
 
     /**
-     * handle处理rpc请求，调用invokeTargetMethod方法
-     * @param rpcRequest
-     * @param service
-     * @return
+     * 查找注册时预先生成的调用器，带方法编号的请求直接按编号查数组
+     * @throws RpcException 找不到服务或者方法
      */
-    public Object handle(RpcRequest rpcRequest, Object service) {
-        Object result = null;
-        try {
-            result = invokeTargetMethod(rpcRequest,service);
-            // 服务 -> 绑定的接口
-            logger.info("服务: {} 成功调用方法: {}", rpcRequest.getInterfaceName(), rpcRequest.getMethodName());
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            logger.error("调用或发送时发生错误: ", e);
-        } return result;
+    public MethodInvoker lookup(RpcRequest rpcRequest, ServiceProvider serviceProvider) throws RpcException {
+        if (rpcRequest.getMethodId() != 0) {
+            return serviceProvider.getInvoker(rpcRequest.getMethodId());
+        }
+        return serviceProvider.getInvoker(rpcRequest.getInterfaceName(), rpcRequest.getMethodName(), rpcRequest.getParamTypes());
     }
 
     /**
      * 调用目标方法
      * @param rpcRequest  rpc请求对象，封装了远程调用方法的信息
-     * @param service 要调用哪个实例上的方法
+     * @param invoker 目标方法的调用器
      * @return  方法调用的返回值
-     * @throws IllegalAccessException
-     * @throws InvocationTargetException
+     * @throws Throwable 业务方法自己抛出的异常，参数类型不匹配时的ClassCastException等
      */
-    private Object invokeTargetMethod(RpcRequest rpcRequest, Object service)
-            throws IllegalAccessException, InvocationTargetException {
-        Method method;
-        try {
-            // 反射只需要传入【方法名】和【方法参数类型】就可以确定方法
-            method = service.getClass().getMethod(rpcRequest.getMethodName(), rpcRequest.getParamTypes());
-        } catch (NoSuchMethodException e) {
-            return RpcResponse.fail(ResponseCode.METHOD_NOT_FOUND, rpcRequest.getRequestId());
-        }
-        // 最后使用invoke调这个方法，第一个参数是在哪个实例上调方法，第二个参数是传入被调用方法的参数
-        return method.invoke(service, rpcRequest.getParameters());
+    public Object handle(RpcRequest rpcRequest, MethodInvoker invoker) throws Throwable {
+        Object result = invoker.invoke(rpcRequest.getParameters());
+        // 服务 -> 绑定的接口
+        logger.info("服务: {} 成功调用方法: {}", rpcRequest.getInterfaceName(), rpcRequest.getMethodName());
+        return result;
     }
 
-    public static void main(String[] args) {
+    /**
+     * 查找或者调用失败时的响应：找不到服务、找不到方法、业务方法抛出异常
+     */
+    public static RpcResponse<Object> failure(RpcRequest rpcRequest, Throwable e) {
+        RpcResponse<Object> rpcResponse;
+        if (e instanceof RpcException && ((RpcException) e).getError() == RpcError.METHOD_NOT_FOUND) {
+            rpcResponse = RpcResponse.fail(ResponseCode.METHOD_NOT_FOUND, rpcRequest);
+        } else if (e instanceof RpcException && ((RpcException) e).getError() == RpcError.SERVICE_NOT_FOUND) {
+            rpcResponse = RpcResponse.fail(ResponseCode.CLASS_NOT_FOUND, rpcRequest);
+        } else {
+            rpcResponse = RpcResponse.fail(ResponseCode.Fail, rpcRequest);
+        }
+        rpcResponse.setMessage(String.valueOf(e));
+        return rpcResponse;
     }
 }
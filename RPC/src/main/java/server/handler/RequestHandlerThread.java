@@ -1,7 +1,6 @@
 package server.handler;
 
 import common.reqeust.RpcRequest;
-import common.config.RpcException;
 import common.response.RpcResponse;
 import server.registry.ServiceProvider;
 import org.slf4j.Logger;
@@ -33,13 +32,18 @@ public class RequestHandlerThread implements Runnable{
         try (ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
              ObjectOutputStream objectOutputStream = new ObjectOutputStream(socket.getOutputStream())) {
             RpcRequest rpcRequest = (RpcRequest) objectInputStream.readObject();
-            // 获取要调用的服务实例
-            Object service = serviceProvider.getService(rpcRequest.getInterfaceName());
-            // 调用并将结果封装到Response对象中
-            Object result = requestHandler.handle(rpcRequest, service);
-            objectOutputStream.writeObject(RpcResponse.success(result, rpcRequest.getRequestId()));
+            RpcResponse<Object> rpcResponse;
+            try {
+                // 获取要调用的方法，调用并将结果封装到Response对象中
+                Object result = requestHandler.handle(rpcRequest, requestHandler.lookup(rpcRequest, serviceProvider));
+                rpcResponse = RpcResponse.success(result, rpcRequest.getRequestId());
+            } catch (Throwable e) {
+                logger.error("调用方法时出现错误: ", e);
+                rpcResponse = RequestHandler.failure(rpcRequest, e);
+            }
+            objectOutputStream.writeObject(rpcResponse);
             objectOutputStream.flush(); // 强制清空缓存区，将数据输出
-        } catch (IOException | RpcException | ClassNotFoundException e) {
+        } catch (IOException | ClassNotFoundException e) {
             logger.error("调用或发送是出现错误: ", e);
         }
     }
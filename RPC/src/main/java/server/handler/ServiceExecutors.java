@@ -0,0 +1,92 @@
+package server.handler;
+
+import common.config.RpcConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务端执行业务逻辑的线程池(舱壁隔离)
+ * 默认所有服务共用一个有界的线程池；个别服务或者方法可以配置自己独立的线程池，慢方法把自己的池子占满也不影响别的服务
+ *
+ * 配置项：
+ *  - rpc.server.executor.threads / rpc.server.executor.queue：默认线程池的线程数和队列长度
+ *  - rpc.server.bulkhead.接口全名.threads / .queue：整个服务独占的线程池
+ *  - rpc.server.bulkhead.接口全名#方法名.threads / .queue：单个方法独占的线程池，优先于服务的
+ * 队列满了直接拒绝，由调用方返回BUSY响应，不在服务端无限堆积
+ */
+public class ServiceExecutors {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceExecutors.class);
+
+    private static final String BULKHEAD_PREFIX = "rpc.server.bulkhead.";
+
+    private static final String THREADS_SUFFIX = ".threads";
+
+    private static final String QUEUE_SUFFIX = ".queue";
+
+    private static final int DEFAULT_THREADS = RpcConfig.getInt("rpc.server.executor.threads",
+            Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final int DEFAULT_QUEUE = RpcConfig.getInt("rpc.server.executor.queue", 1024);
+
+    private final ThreadPoolExecutor defaultExecutor;
+
+    // 服务名或者 服务名#方法名 -> 独占的线程池，启动时建好以后不再变化
+    private final Map<String, ThreadPoolExecutor> bulkheads = new HashMap<>();
+
+    public ServiceExecutors() {
+        this.defaultExecutor = newExecutor("default", DEFAULT_THREADS, DEFAULT_QUEUE);
+        for (String key : RpcConfig.keys(BULKHEAD_PREFIX)) {
+            if (!key.endsWith(THREADS_SUFFIX)) {
+                continue;
+            }
+            String name = key.substring(BULKHEAD_PREFIX.length(), key.length() - THREADS_SUFFIX.length());
+            int threads = RpcConfig.getInt(key, DEFAULT_THREADS);
+            int queue = RpcConfig.getInt(BULKHEAD_PREFIX + name + QUEUE_SUFFIX, DEFAULT_QUEUE);
+            bulkheads.put(name, newExecutor(name, threads, queue));
+            logger.info("服务 {} 使用独立线程池，线程数: {}，队列长度: {}", name, threads, queue);
+        }
+    }
+
+    /**
+     * 方法的线程池优先，其次是服务的，都没有配置就用默认的
+     */
+    public ThreadPoolExecutor select(String interfaceName, String methodName) {
+        if (!bulkheads.isEmpty()) {
+            ThreadPoolExecutor executor = bulkheads.get(interfaceName + "#" + methodName);
+            if (executor == null) {
+                executor = bulkheads.get(interfaceName);
+            }
+            if (executor != null) {
+                return executor;
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * 提交任务，线程池和队列都满了时抛出RejectedExecutionException
+     */
+    public void execute(String interfaceName, String methodName, Runnable task) throws RejectedExecutionException {
+        select(interfaceName, methodName).execute(task);
+    }
+
+    private static ThreadPoolExecutor newExecutor(String name, int threads, int queue) {
+        AtomicInteger index = new AtomicInteger();
+        ThreadFactory threadFactory = r -> new Thread(r, "rpc-biz-" + name + "-" + index.incrementAndGet());
+        // 核心线程数等于最大线程数，先把线程开满再排队；空闲的线程超时回收
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(queue, 1)), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -2,12 +2,22 @@ package server.registry.Impl;
 
 import common.config.RpcError;
 import common.config.RpcException;
+import common.util.MethodSignatures;
+import server.registry.MethodInvoker;
 import server.registry.ServiceProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class DefaultServiceProvider implements ServiceProvider {
@@ -18,6 +28,13 @@ public class DefaultServiceProvider implements ServiceProvider {
     // 并且设置为static保证全局唯一的注册信息
     private static final Map<String, Object> serviceMap = new ConcurrentHashMap<>();
     private static final Set<String> registeredService = ConcurrentHashMap.newKeySet();
+    // 接口名 -> 接口，批量发布到注册中心时使用
+    private static final Map<String, Class<?>> interfaceMap = new ConcurrentHashMap<>();
+    // 接口名#方法键 -> 调用器，注册时整体复制一份再替换，调用时只读不加锁
+    private static volatile Map<String, MethodInvoker> invokers = Collections.emptyMap();
+    // 方法编号表，下标+1是编号，新注册的方法追加在末尾，已经下发给客户端的编号不会变
+    private static volatile String[] methodKeys = new String[0];
+    private static volatile MethodInvoker[] invokersById = new MethodInvoker[0];
 
     /**
      * 向容器注册服务
@@ -32,7 +49,6 @@ public class DefaultServiceProvider implements ServiceProvider {
         if (registeredService.contains(serviceName)) {
             return;
         } else {
-            registeredService.add(serviceName);
             // 可能实现了多个接口，因此使用接口数组
             Class<?>[] interfaces = service.getClass().getInterfaces();
             if (interfaces.length == 0) {
@@ -40,14 +56,46 @@ public class DefaultServiceProvider implements ServiceProvider {
             }
             // 一个服务对象可能实现了多个接口，因此注册的时候多个接口都绑定在同一个对象（value）上，逻辑更清晰
             // 如果某个服务对象实现了两个接口，那就相当于会注册两个Map.Entry<K， V>对象, 且两个K都是绑定同一个V
+            Map<String, MethodInvoker> added = new HashMap<>();
+            for (Class<?> i : interfaces) {
+                for (Method method : i.getMethods()) {
+                    try {
+                        added.put(i.getCanonicalName() + "#" + MethodSignatures.key(method.getName(), method.getParameterTypes()),
+                                new MethodInvoker(i, method, service));
+                    } catch (IllegalAccessException | RuntimeException e) {
+                        logger.error("无法为方法 {} 生成调用器", method, e);
+                        throw new RpcException(RpcError.SERVICE_REGISTER_FAILURE, method.toString());
+                    }
+                }
+            }
             for (Class<?> i : interfaces) {
                 serviceMap.put(i.getCanonicalName(), service);
+                interfaceMap.put(i.getCanonicalName(), i);
             }
+            addInvokers(added);
+            registeredService.add(serviceName);
             logger.info("向接口: {} 注册服务：{}", interfaces, serviceName);
         }
 
     }
 
+    // 服务表是静态的，多个容器实例同时注册时也不能丢掉别人的调用器
+    private static synchronized void addInvokers(Map<String, MethodInvoker> added) {
+        Map<String, MethodInvoker> table = new HashMap<>(invokers);
+        List<String> keys = new ArrayList<>(Arrays.asList(methodKeys));
+        List<MethodInvoker> byId = new ArrayList<>(Arrays.asList(invokersById));
+        for (String key : new TreeSet<>(added.keySet())) {
+            if (table.put(key, added.get(key)) == null) {
+                keys.add(key);
+                byId.add(added.get(key));
+            }
+        }
+        // 先发布编号表再发布名字表，握手拿到的编号总能查到
+        invokersById = byId.toArray(new MethodInvoker[0]);
+        methodKeys = keys.toArray(new String[0]);
+        invokers = Collections.unmodifiableMap(table);
+    }
+
     /**
      * 从容器拉取服务
      * @param serviceName 要拉取的服务名
@@ -55,7 +103,7 @@ public class DefaultServiceProvider implements ServiceProvider {
      * @throws RpcException
      */
     @Override
-    public synchronized Object getService(String serviceName) throws RpcException {
+    public Object getService(String serviceName) throws RpcException {
         Object service = serviceMap.get(serviceName);
         // 如果没有拉取到，就抛出异常
         if (service == null) {
@@ -63,4 +111,36 @@ public class DefaultServiceProvider implements ServiceProvider {
         }
         return service;
     }
+
+    /**
+     * 一次map查找拿到预先生成的调用器，查不到时再区分是服务还是方法不存在
+     */
+    @Override
+    public MethodInvoker getInvoker(String serviceName, String methodName, Class<?>[] paramTypes) throws RpcException {
+        MethodInvoker invoker = invokers.get(serviceName + "#" + MethodSignatures.key(methodName, paramTypes));
+        if (invoker == null) {
+            getService(serviceName);
+            throw new RpcException(RpcError.METHOD_NOT_FOUND, serviceName + "#" + methodName);
+        }
+        return invoker;
+    }
+
+    @Override
+    public MethodInvoker getInvoker(int methodId) throws RpcException {
+        MethodInvoker[] table = invokersById;
+        if (methodId < 1 || methodId > table.length) {
+            throw new RpcException(RpcError.METHOD_NOT_FOUND, "方法编号: " + methodId);
+        }
+        return table[methodId - 1];
+    }
+
+    @Override
+    public String[] getMethodKeys() {
+        return methodKeys.clone();
+    }
+
+    @Override
+    public Collection<Class<?>> getServiceInterfaces() {
+        return new ArrayList<>(interfaceMap.values());
+    }
 }
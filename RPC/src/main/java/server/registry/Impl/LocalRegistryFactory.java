@@ -0,0 +1,23 @@
+package server.registry.Impl;
+
+import client.lb.LoadBalancer;
+import server.registry.RegistryFactory;
+import server.registry.ServiceRegistry;
+
+public class LocalRegistryFactory implements RegistryFactory {
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public ServiceRegistry createServerRegistry() {
+        return new LocalServiceRegistry(null);
+    }
+
+    @Override
+    public ServiceRegistry createClientRegistry(LoadBalancer loadBalancer) {
+        return new LocalServiceRegistry(loadBalancer);
+    }
+}
@@ -0,0 +1,445 @@
+package server.registry.Impl;
+
+import client.lb.LoadBalancer;
+import common.config.RpcConfig;
+import common.reqeust.RpcRequest;
+import server.registry.ProviderListener;
+import server.registry.ServiceInstance;
+import server.registry.ServiceMetadata;
+import server.registry.ServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本机注册中心，不依赖任何外部进程
+ * 同一台机器上的多个进程通过一个内存映射文件共享服务表，适合本地集群和压测
+ *
+ * 文件布局：魔数(4) | 保留(4) | 版本号(8) | 数据长度(4) | ... | 从第64字节开始是数据
+ * 数据是文本行：服务名 \t 节点名 \t 节点数据(和zookeeper的格式一样)
+ * 写入方先拿文件锁，把版本号改成奇数，写完数据再改成下一个偶数；
+ * 读取方不加锁，读数据前后版本号相同且为偶数才算读到了完整的数据(seqlock)
+ * 客户端定时轮询版本号，变了才重新解析
+ *
+ * 每个注册了服务的进程还有一行租约：$lease \t 进程号@主机名 \t 最近一次心跳的时间
+ * 进程每隔leaseInterval续一次租约，超过leaseTimeout没续的进程视为已经死掉(kill -9、OOM等没机会执行清理的情况)：
+ * 读取方忽略它的记录，下一次任何进程写入时顺便把它的记录删掉
+ * 进程正常退出时删掉自己注册的记录
+ */
+public class LocalServiceRegistry implements ServiceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalServiceRegistry.class);
+
+    private static final String FILE = RpcConfig.get("rpc.registry.local.file",
+            System.getProperty("java.io.tmpdir") + File.separator + "rpc-local-registry");
+
+    private static final int SIZE = RpcConfig.getInt("rpc.registry.local.size", 1024 * 1024);
+
+    private static final long POLL_INTERVAL = RpcConfig.getLong("rpc.registry.local.pollInterval", 100);
+
+    private static final int WEIGHT = RpcConfig.getInt("rpc.server.weight", ServiceInstance.DEFAULT_WEIGHT);
+
+    // 续租间隔和租约有效期，单位毫秒
+    private static final long LEASE_INTERVAL = RpcConfig.getLong("rpc.registry.local.leaseInterval", 1000);
+
+    private static final long LEASE_TIMEOUT = RpcConfig.getLong("rpc.registry.local.leaseTimeout", 5000);
+
+    // 租约行的服务名
+    private static final String LEASE = "$lease";
+
+    private static final String NODE_PREFIX = "local-";
+
+    private static final int MAGIC = 0x52504C52;
+
+    private static final int VERSION_OFFSET = 8;
+
+    private static final int LENGTH_OFFSET = 16;
+
+    private static final int DATA_OFFSET = 64;
+
+    // 进程号@主机名，用来生成本进程注册的节点名
+    private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+    private static final AtomicInteger NODE_SEQUENCE = new AtomicInteger();
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final LoadBalancer loadBalancer;
+
+    // 服务名 -> 实例列表，整个表不可变，版本号变化时整体替换
+    private volatile Map<String, List<ServiceInstance>> services = Collections.emptyMap();
+
+    private long version = -1;
+
+    // 上次读到的全部记录，版本号没变时用它重新判断租约是否过期
+    private List<String> records = Collections.emptyList();
+
+    // 当前服务表里最早过期的租约，到了这个时间即使版本号没变也要重新计算
+    private long nextExpiry = Long.MAX_VALUE;
+
+    // 本进程注册的记录，续租时如果发现被别人当作过期删掉了就补回去，退出时删除
+    private final List<String> ownRecords = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final List<ProviderListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param loadBalancer 客户端传入负载均衡策略，服务端传null，不轮询
+     */
+    public LocalServiceRegistry(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+        try {
+            RandomAccessFile file = new RandomAccessFile(FILE, "rw");
+            this.channel = file.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("打开本机注册中心文件失败: " + FILE, e);
+        }
+        write(lines -> {
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::unregisterAll, "local-registry-cleanup"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-registry-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::renewLease, LEASE_INTERVAL, LEASE_INTERVAL, TimeUnit.MILLISECONDS);
+        if (loadBalancer != null) {
+            poll();
+            scheduler.scheduleWithFixedDelay(this::poll, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void register(String serviceName, InetSocketAddress inetSocketAddress) {
+        String data = ServiceInstance.toData(inetSocketAddress.getHostString(), inetSocketAddress.getPort(),
+                WEIGHT, System.currentTimeMillis(), ServiceMetadata.common());
+        publish(Collections.singletonMap(serviceName, data));
+    }
+
+    @Override
+    public void registerAll(Collection<Class<?>> serviceClasses, InetSocketAddress inetSocketAddress) {
+        long timestamp = System.currentTimeMillis();
+        Map<String, String> services = new LinkedHashMap<>();
+        for (Class<?> serviceClass : serviceClasses) {
+            services.put(serviceClass.getCanonicalName(), ServiceInstance.toData(inetSocketAddress.getHostString(),
+                    inetSocketAddress.getPort(), WEIGHT, timestamp, ServiceMetadata.of(serviceClass)));
+        }
+        publish(services);
+    }
+
+    /**
+     * 所有服务在一次加锁写入里完成
+     * @param services 服务名 -> 节点数据
+     */
+    private void publish(Map<String, String> services) {
+        List<String> records = new ArrayList<>();
+        for (Map.Entry<String, String> entry : services.entrySet()) {
+            String node = NODE_PREFIX + OWNER + "-" + NODE_SEQUENCE.incrementAndGet();
+            records.add(entry.getKey() + "\t" + node + "\t" + entry.getValue());
+        }
+        // 记录和租约在同一次写入里，读取方不会看到没有租约的记录
+        write(lines -> {
+            lines.addAll(records);
+            putLease(lines);
+        });
+        ownRecords.addAll(records);
+        for (Map.Entry<String, String> entry : services.entrySet()) {
+            logger.info("注册服务 {} -> {}", entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public InetSocketAddress lookupService(String serviceName) {
+        return lookupService(RpcRequest.builder().interfaceName(serviceName).build());
+    }
+
+    @Override
+    public InetSocketAddress lookupService(RpcRequest rpcRequest) {
+        List<ServiceInstance> instances = services.getOrDefault(rpcRequest.getInterfaceName(), Collections.emptyList());
+        if (instances.isEmpty()) {
+            logger.error("找不到服务 {} 的任何地址", rpcRequest.getInterfaceName());
+            return null;
+        }
+        return loadBalancer.select(instances, rpcRequest).getAddress();
+    }
+
+    @Override
+    public List<String> getServiceList(String serviceName) {
+        List<String> nodes = new ArrayList<>();
+        for (ServiceInstance instance : services.getOrDefault(serviceName, Collections.emptyList())) {
+            nodes.add(instance.getNode());
+        }
+        return nodes;
+    }
+
+    @Override
+    public List<InetSocketAddress> lookupAllServices(String serviceName) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ServiceInstance instance : services.getOrDefault(serviceName, Collections.emptyList())) {
+            addresses.add(instance.getAddress());
+        }
+        return addresses;
+    }
+
+    @Override
+    public void addProviderListener(ProviderListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 定时任务里调用，出错只记日志：异常会让scheduleWithFixedDelay取消后面所有的轮询
+     */
+    private void poll() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            logger.error("读取本机注册中心失败: {}", FILE, e);
+        }
+    }
+
+    /**
+     * 版本号变了才重新解析服务表，读到写了一半的数据就等下一轮
+     * 版本号没变但有租约到期时，用上次读到的记录重新计算
+     */
+    private synchronized void refresh() {
+        long before = buffer.getLong(VERSION_OFFSET);
+        boolean changed = before != version;
+        if ((before & 1) != 0 || (!changed && System.currentTimeMillis() < nextExpiry)) {
+            return;
+        }
+        if (changed) {
+            int length = buffer.getInt(LENGTH_OFFSET);
+            if (length < 0 || length > SIZE - DATA_OFFSET) {
+                return;
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(DATA_OFFSET + i);
+            }
+            if (buffer.getLong(VERSION_OFFSET) != before) {
+                return;
+            }
+            records = parse(bytes);
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Long> leases = leases(records);
+        Map<String, List<ServiceInstance>> current = new HashMap<>();
+        long next = Long.MAX_VALUE;
+        for (String line : records) {
+            String[] fields = line.split("\t", 3);
+            if (LEASE.equals(fields[0])) {
+                continue;
+            }
+            long expiry = leases.getOrDefault(ownerOf(fields[1]), 0L);
+            if (expiry <= now) {
+                continue;
+            }
+            try {
+                current.computeIfAbsent(fields[0], k -> new ArrayList<>()).add(ServiceInstance.parse(fields[1], fields[2]));
+                next = Math.min(next, expiry);
+            } catch (RuntimeException e) {
+                logger.warn("忽略无法解析的注册记录: {}", line, e);
+            }
+        }
+        // 续租也会改版本号，成员没变的服务沿用原来的列表对象，负载均衡器按列表缓存的哈希环、调度表不用重建
+        Map<String, List<ServiceInstance>> previous = services;
+        for (Map.Entry<String, List<ServiceInstance>> entry : current.entrySet()) {
+            List<ServiceInstance> old = previous.get(entry.getKey());
+            entry.setValue(old != null && sameInstances(old, entry.getValue())
+                    ? old : Collections.unmodifiableList(entry.getValue()));
+        }
+        services = Collections.unmodifiableMap(current);
+        version = before;
+        nextExpiry = next;
+        notifyRemoved(previous, current);
+    }
+
+    private static boolean sameInstances(List<ServiceInstance> a, List<ServiceInstance> b) {
+        return a.size() == b.size() && new HashSet<>(a).equals(new HashSet<>(b));
+    }
+
+    private void notifyRemoved(Map<String, List<ServiceInstance>> previous, Map<String, List<ServiceInstance>> current) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Set<InetSocketAddress> removed = new HashSet<>();
+        for (List<ServiceInstance> instances : previous.values()) {
+            for (ServiceInstance instance : instances) {
+                removed.add(instance.getAddress());
+            }
+        }
+        for (List<ServiceInstance> instances : current.values()) {
+            for (ServiceInstance instance : instances) {
+                removed.remove(instance.getAddress());
+            }
+        }
+        for (InetSocketAddress address : removed) {
+            logger.info("服务提供者 {} 已下线", address);
+            for (ProviderListener listener : listeners) {
+                listener.onRemoved(address);
+            }
+        }
+    }
+
+    private void unregisterAll() {
+        if (!ownRecords.isEmpty()) {
+            // 先清空，之后的续租不会再把记录补回去
+            ownRecords.clear();
+            write(lines -> lines.removeIf(this::isOwn));
+        }
+    }
+
+    /**
+     * 续租，同时补回被别的进程当作过期删掉的记录(比如本进程停顿超过了租约有效期)
+     * 还在的记录不动，保持记录的顺序不变
+     */
+    private void renewLease() {
+        if (ownRecords.isEmpty()) {
+            return;
+        }
+        try {
+            write(lines -> {
+                for (String record : ownRecords) {
+                    if (!lines.contains(record)) {
+                        lines.add(record);
+                    }
+                }
+                putLease(lines);
+            });
+        } catch (RuntimeException e) {
+            logger.error("续租本机注册中心失败: {}", FILE, e);
+        }
+    }
+
+    private void putLease(List<String> lines) {
+        lines.removeIf(line -> line.startsWith(LEASE + "\t" + OWNER + "\t"));
+        lines.add(LEASE + "\t" + OWNER + "\t" + System.currentTimeMillis());
+    }
+
+    private boolean isOwn(String line) {
+        String[] fields = line.split("\t", 3);
+        return LEASE.equals(fields[0]) ? OWNER.equals(fields[1]) : OWNER.equals(ownerOf(fields[1]));
+    }
+
+    /**
+     * 进程号@主机名 -> 租约到期时间
+     */
+    private static Map<String, Long> leases(List<String> lines) {
+        Map<String, Long> leases = new HashMap<>();
+        for (String line : lines) {
+            String[] fields = line.split("\t", 3);
+            if (LEASE.equals(fields[0])) {
+                try {
+                    leases.put(fields[1], Long.parseLong(fields[2]) + LEASE_TIMEOUT);
+                } catch (NumberFormatException e) {
+                    logger.warn("忽略无法解析的租约: {}", line);
+                }
+            }
+        }
+        return leases;
+    }
+
+    /**
+     * 节点名local-进程号@主机名-序号里的进程号@主机名
+     */
+    private static String ownerOf(String node) {
+        int end = node.lastIndexOf('-');
+        return node.startsWith(NODE_PREFIX) && end > NODE_PREFIX.length() ? node.substring(NODE_PREFIX.length(), end) : node;
+    }
+
+    /**
+     * 删掉租约过期的进程的记录和租约，没有租约的记录也当作过期
+     */
+    private static void purgeExpired(List<String> lines) {
+        long now = System.currentTimeMillis();
+        Map<String, Long> leases = leases(lines);
+        lines.removeIf(line -> {
+            String[] fields = line.split("\t", 3);
+            String owner = LEASE.equals(fields[0]) ? fields[1] : ownerOf(fields[1]);
+            return leases.getOrDefault(owner, 0L) <= now;
+        });
+    }
+
+    private interface Mutation {
+        void apply(List<String> lines);
+    }
+
+    /**
+     * 在文件锁内读出全部记录、修改、写回，并推进版本号
+     * 同一个进程内的多个实例共用一个文件，FileLock在进程内不能重入，所以再加一层类锁
+     */
+    private void write(Mutation mutation) {
+        synchronized (LocalServiceRegistry.class) {
+            try (FileLock ignored = channel.lock()) {
+                // 新文件，或者上一个写入方写到一半退出了
+                if (buffer.getInt(0) != MAGIC) {
+                    buffer.putLong(VERSION_OFFSET, 0);
+                    buffer.putInt(LENGTH_OFFSET, 0);
+                    buffer.putInt(0, MAGIC);
+                }
+                long current = buffer.getLong(VERSION_OFFSET);
+                long odd = (current & 1) == 0 ? current + 1 : current;
+                int length = Math.max(0, Math.min(buffer.getInt(LENGTH_OFFSET), SIZE - DATA_OFFSET));
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = buffer.get(DATA_OFFSET + i);
+                }
+                List<String> lines = parse(bytes);
+                mutation.apply(lines);
+                purgeExpired(lines);
+                byte[] data = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+                if (data.length > SIZE - DATA_OFFSET) {
+                    throw new IllegalStateException("本机注册中心文件已满，请调大rpc.registry.local.size");
+                }
+                buffer.putLong(VERSION_OFFSET, odd);
+                for (int i = 0; i < data.length; i++) {
+                    buffer.put(DATA_OFFSET + i, data[i]);
+                }
+                buffer.putInt(LENGTH_OFFSET, data.length);
+                buffer.putLong(VERSION_OFFSET, odd + 1);
+            } catch (IOException e) {
+                throw new IllegalStateException("写入本机注册中心文件失败: " + FILE, e);
+            }
+        }
+    }
+
+    private static List<String> parse(byte[] bytes) {
+        List<String> lines = new ArrayList<>();
+        if (bytes.length == 0) {
+            return lines;
+        }
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            if (line.split("\t", 3).length == 3) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
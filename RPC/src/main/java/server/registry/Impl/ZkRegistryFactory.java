@@ -0,0 +1,23 @@
+package server.registry.Impl;
+
+import client.lb.LoadBalancer;
+import server.registry.RegistryFactory;
+import server.registry.ServiceRegistry;
+
+public class ZkRegistryFactory implements RegistryFactory {
+
+    @Override
+    public String getName() {
+        return "zookeeper";
+    }
+
+    @Override
+    public ServiceRegistry createServerRegistry() {
+        return new ZkServiceRegistry();
+    }
+
+    @Override
+    public ServiceRegistry createClientRegistry(LoadBalancer loadBalancer) {
+        return new ZkServiceRegistry(null, loadBalancer);
+    }
+}
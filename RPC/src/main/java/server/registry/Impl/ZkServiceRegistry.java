@@ -2,9 +2,15 @@ package server.registry.Impl;
 
 import client.RpcClient;
 import client.lb.Impl.ConsistentHashLoadBalancer;
-import client.lb.Impl.RandomLoadBalancer;
-import client.lb.Impl.RoundRobinLoadBalancer;
 import client.lb.LoadBalancer;
+import common.config.RpcConfig;
+import common.config.RpcError;
+import common.config.RpcException;
+import common.reqeust.RpcRequest;
+import server.registry.ProviderListener;
+import server.registry.RegistrySnapshot;
+import server.registry.ServiceInstance;
+import server.registry.ServiceMetadata;
 import server.registry.ServiceRegistry;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.zookeeper.*;
@@ -12,9 +18,21 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ZkServiceRegistry implements ServiceRegistry {
 
@@ -23,10 +41,34 @@ public class ZkServiceRegistry implements ServiceRegistry {
     private static final String SERVER_ADDR = "127.0.0.1:2181"; // zookeeper默认端口
     private static final String REGISTRY_PATH = "/registry";
     private static final int SESSION_TIMEOUT = 5000;
-    private ZooKeeper zk;
+    // 启动时最多等zookeeper连接多久，超时后先用本地快照工作，连接在后台继续建立
+    private static final long CONNECT_TIMEOUT = RpcConfig.getLong("rpc.registry.zk.connectTimeout", 5000);
+    // 客户端地址表的本地快照文件，默认每个应用一个，不同应用的客户端订阅的服务不同，不能互相覆盖
+    private static final String SNAPSHOT_FILE = RpcConfig.get("rpc.registry.snapshot",
+            System.getProperty("user.home") + File.separator + ".rpc" + File.separator
+                    + "registry-" + RpcConfig.get("rpc.application", defaultApplication()) + ".snapshot");
+    // 本机注册的服务权重，机器配置越好可以设得越大
+    private static final int WEIGHT = RpcConfig.getInt("rpc.server.weight", ServiceInstance.DEFAULT_WEIGHT);
+    // 批量注册遇到并发创建服务节点时最多提交几次
+    private static final int PUBLISH_ATTEMPTS = 3;
+    private volatile ZooKeeper zk;
     private LoadBalancer loadBalancer;
     private RpcClient rpcClient;
 
+    // 服务名 -> 实例列表，列表不可变，zookeeper通知子节点或节点数据变化时整体替换
+    // 查询只是一次map读取，不访问zookeeper
+    private final Map<String, List<ServiceInstance>> serviceCache = new ConcurrentHashMap<>();
+
+    // 每个服务一把锁，保证同一服务的重新读取串行进行，旧的结果不会覆盖新的
+    private final Map<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    private final Map<String, Watcher> watchers = new ConcurrentHashMap<>();
+
+    private final List<ProviderListener> listeners = new CopyOnWriteArrayList<>();
+
+    // 只有客户端保存快照
+    private RegistrySnapshot snapshot;
+
     /**
      * 服务端使用
      */
@@ -34,46 +76,108 @@ public class ZkServiceRegistry implements ServiceRegistry {
         initializeZooKeeper();
     };
 
+    /**
+     * 客户端使用，默认一致性哈希负载均衡
+     */
+    public ZkServiceRegistry(RpcClient rpcClient) {
+        this(rpcClient, new ConsistentHashLoadBalancer());
+    }
+
     /**
      * 客户端使用
      * 传入负载均衡策略
      */
-    public ZkServiceRegistry(RpcClient rpcClient) {
-        // TODO loadbalancer, zookeeper, ZksServiceRegistry三者耦合严重，所以没有直接传lb，需要想办法处理
-        // 如果传入一个null，就默认是轮询
-        // if (loadBalancer == null) {
-        //     this.loadBalancer = new RoundRobinLoadBalancer();
-        // } else {
-        //     this.loadBalancer = loadBalancer;
-        // }
+    public ZkServiceRegistry(RpcClient rpcClient, LoadBalancer loadBalancer) {
         this.rpcClient = rpcClient;
+        this.loadBalancer = loadBalancer;
+        // 先加载上次的地址表，zookeeper连上以后再在后台逐个服务核对
+        this.snapshot = new RegistrySnapshot(new File(SNAPSHOT_FILE));
+        serviceCache.putAll(snapshot.load());
         initializeZooKeeper();
     }
 
     /**
      * 初始化zooKeeper并建立连接
+     * 最多等待CONNECT_TIMEOUT，连不上也不再一直阻塞：zookeeper客户端会在后台继续重连
+     * 连上(包括断线重连)以后重新读取缓存里的所有服务，会话过期时重新创建客户端
      */
     public void initializeZooKeeper() {
         try {
             CountDownLatch countDownLatch = new CountDownLatch(1);
             // 构建zookeeper，传入地址，timeout，监视器
-            // 这个监视器用于监视与zookeeper服务器的连接是否成功，判断标准为 事件 == 枚举类syncConnected
+            // 这个监视器用于监视与zookeeper服务器的连接状态
             zk = new ZooKeeper(SERVER_ADDR, SESSION_TIMEOUT, new Watcher() {
                 @Override
                 public void process(WatchedEvent event) {
                     if (event.getState() == Event.KeeperState.SyncConnected) {
                         logger.info("zk连接创建成功");
+                        // 第一次连上时缓存里只有快照的数据，之后是断线期间可能错过的变化
+                        if (countDownLatch.getCount() == 0 || !serviceCache.isEmpty()) {
+                            reconcile();
+                        }
                         countDownLatch.countDown();
+                    } else if (event.getState() == Event.KeeperState.Expired) {
+                        logger.warn("zk会话过期，重新连接");
+                        reconnect();
                     }
                 }
             });
-            // 使用CountDownLatch阻塞直到zookeeper连接完成
-            countDownLatch.await();
+            // 使用CountDownLatch等待zookeeper连接完成
+            if (!countDownLatch.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("{}ms内没有连上zookeeper {}，先使用本地快照，连接在后台继续进行", CONNECT_TIMEOUT, SERVER_ADDR);
+            }
         } catch (Exception e) {
             logger.error("zk连接创建失败", e);
         }
     }
 
+    /**
+     * 会话过期后关闭旧客户端并重新创建
+     * 在单独的线程里进行：回调线程就是旧客户端的事件线程，在上面等待连接会阻塞所有通知，也没法关闭它自己
+     */
+    private void reconnect() {
+        ZooKeeper expired = zk;
+        Thread thread = new Thread(() -> {
+            try {
+                expired.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            initializeZooKeeper();
+        }, "zk-registry-reconnect");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 没有配置rpc.application时用启动类名或jar包名区分应用
+     */
+    private static String defaultApplication() {
+        String command = System.getProperty("sun.java.command", "").trim();
+        String main = command.isEmpty() ? "" : command.split("\\s+")[0];
+        if (main.endsWith(".jar")) {
+            main = new File(main).getName();
+            main = main.substring(0, main.length() - ".jar".length());
+        } else {
+            main = main.substring(main.lastIndexOf('.') + 1);
+        }
+        main = main.replaceAll("[^A-Za-z0-9_.-]", "_");
+        return main.isEmpty() ? "default" : main;
+    }
+
+    /**
+     * 在后台重新读取缓存里的所有服务，同时重新注册监听
+     */
+    private void reconcile() {
+        Thread thread = new Thread(() -> {
+            for (String serviceName : serviceCache.keySet()) {
+                loadInstances(serviceName, true);
+            }
+        }, "zk-registry-reconcile");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * 将服务注册到zookeeper，【为服务端侧调用】
      * 1. 注册服务名为根节点下的持久化节点
@@ -81,39 +185,79 @@ public class ZkServiceRegistry implements ServiceRegistry {
      * 每次服务重启时会清空临时节点（分布式服务器），并重新注册临时节点
      *
      * 节点路径为 /registry/serviceName/address-
-     *
-     * 缺陷：目前服务端一次只能注册一个服务，如需注册多个，就得多调几次register
      */
     @Override
-    public void register(String serviceName, InetSocketAddress inetSocketAddress) {
-        String registryPath = REGISTRY_PATH;
+    public void register(String serviceName, InetSocketAddress inetSocketAddress) throws RpcException {
+        String serviceAddress = ServiceInstance.toData(inetSocketAddress.getHostName(), inetSocketAddress.getPort(),
+                WEIGHT, System.currentTimeMillis(), ServiceMetadata.common());
+        publish(Collections.singletonMap(serviceName, serviceAddress));
+    }
+
+    /**
+     * 批量注册服务，【为服务端侧调用】
+     * 节点数据里除了地址、权重和注册时间，还有支持的序列化器、协议版本和方法表哈希
+     */
+    @Override
+    public void registerAll(Collection<Class<?>> serviceClasses, InetSocketAddress inetSocketAddress) throws RpcException {
         String host = inetSocketAddress.getHostName();
-        int port = inetSocketAddress.getPort();
-        // 将服务地址信息（IP : port）转换为字符串存储到zookeeper
-        String serviceAddress = String.format("%s:%d", host, port);
+        long timestamp = System.currentTimeMillis();
+        Map<String, String> services = new LinkedHashMap<>();
+        for (Class<?> serviceClass : serviceClasses) {
+            services.put(serviceClass.getCanonicalName(), ServiceInstance.toData(host, inetSocketAddress.getPort(),
+                    WEIGHT, timestamp, ServiceMetadata.of(serviceClass)));
+        }
+        publish(services);
+    }
 
-        try {
-            // 创建持久根节点，节点名为registry
-            if (zk.exists(registryPath, false) == null) {
-                zk.create(registryPath,null,ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                logger.info("创建注册表节点:{}", registryPath);
-            }
-            // 创建持久子节点，节点名为服务名
-            // 注意zookeeper只支持绝对路径，因此这个子节点的path必须带上父节点的path
-            String servicePath = registryPath + "/" + serviceName;  // registry/service_Name
-            if (zk.exists(servicePath, false) == null) {
-                zk.create(servicePath,null, ZooDefs.Ids.OPEN_ACL_UNSAFE,CreateMode.PERSISTENT);
-                logger.info("创建服务节点:{}", servicePath);
+    /**
+     * 一次getChildren查出已有的服务节点，再用一个multi事务创建缺少的持久节点和全部地址临时节点
+     * 不管注册多少个服务都只有两次往返，而且要么全部注册成功，要么都不生效
+     * 别的服务端同时创建了同一个服务节点时整个事务失败，重新查一次再提交
+     * @param services 服务名 -> 地址节点数据
+     */
+    private void publish(Map<String, String> services) throws RpcException {
+        if (services.isEmpty()) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Set<String> existing;
+                List<Op> ops = new ArrayList<>();
+                try {
+                    existing = new HashSet<>(zk.getChildren(REGISTRY_PATH, false));
+                } catch (KeeperException.NoNodeException e) {
+                    existing = Collections.emptySet();
+                    ops.add(Op.create(REGISTRY_PATH, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                }
+                // 注意zookeeper只支持绝对路径，因此子节点的path必须带上父节点的path
+                for (String serviceName : services.keySet()) {
+                    if (!existing.contains(serviceName)) {
+                        ops.add(Op.create(REGISTRY_PATH + "/" + serviceName, null,
+                                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                    }
+                }
+                for (Map.Entry<String, String> entry : services.entrySet()) {
+                    ops.add(Op.create(REGISTRY_PATH + "/" + entry.getKey() + "/address-",
+                            entry.getValue().getBytes(StandardCharsets.UTF_8),
+                            ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+                }
+                List<OpResult> results = zk.multi(ops);
+                for (OpResult result : results) {
+                    logger.info("创建节点:{}", ((OpResult.CreateResult) result).getPath());
+                }
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                if (attempt >= PUBLISH_ATTEMPTS) {
+                    throw new RpcException(RpcError.SERVICE_REGISTER_FAILURE, e.getMessage());
+                }
+                logger.warn("服务节点被同时创建，重新注册");
+            } catch (KeeperException e) {
+                logger.error("zookeeper注册服务时发生故障", e);
+                throw new RpcException(RpcError.SERVICE_REGISTER_FAILURE, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RpcException(RpcError.SERVICE_REGISTER_FAILURE, e.getMessage());
             }
-            // 创建临时有序子节点，节点名为服务地址
-            // 这个节点也必须带上完整的父节点path
-            String addressPath = servicePath + "/address-";
-            // 地址节点名
-            String addressNode = zk.create(addressPath, serviceAddress.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,CreateMode.EPHEMERAL_SEQUENTIAL);
-            logger.info("创建地址节点:{} -> {}", addressNode, serviceAddress);
-        } catch (KeeperException | InterruptedException e) {
-            logger.error("zookeeper注册服务时发生故障", e);
-            System.exit(0);
         }
     }
 
@@ -139,55 +283,146 @@ public class ZkServiceRegistry implements ServiceRegistry {
         return addressList;
     }
 
+    /**
+     * 查询服务的所有地址，查询失败返回空列表
+     */
+    @Override
+    public List<InetSocketAddress> lookupAllServices(String serviceName) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ServiceInstance instance : getInstances(serviceName)) {
+            addresses.add(instance.getAddress());
+        }
+        return addresses;
+    }
+
     /**
      * 客户端通过待调用的服务名来查找该服务对应的服务器地址，【为客户端侧调用】
-     * 使用负载均衡获取
      */
     @Override
     public InetSocketAddress lookupService(String serviceName) {
-        try {
-            String address;
-            String addressNode;
-            String registryPath = REGISTRY_PATH;
-            String servicePath = registryPath + "/" + serviceName;
-            // 拿到zk临时节点的path
-            List<String> addressList = zk.getChildren(servicePath, true);
-            if (CollectionUtils.isEmpty(addressList)) {
-                throw new RuntimeException(String.format(">>>无法在此路径上找到任何地址 {}", servicePath));
+        return lookupService(RpcRequest.builder().interfaceName(serviceName).build());
+    }
+
+    /**
+     * 按请求查找服务地址，【为客户端侧调用】
+     * 实例列表走本地缓存，只有成员变化时才重新访问zookeeper，负载均衡器按请求从列表里选一个
+     */
+    @Override
+    public InetSocketAddress lookupService(RpcRequest rpcRequest) {
+        List<ServiceInstance> instances = getInstances(rpcRequest.getInterfaceName());
+        if (instances.isEmpty()) {
+            logger.error("找不到服务 {} 的任何地址", rpcRequest.getInterfaceName());
+            return null;
+        }
+        ServiceInstance instance = loadBalancer.select(instances, rpcRequest);
+        logger.info("负载均衡获得地址节点: {}", instance);
+        return instance.getAddress();
+    }
+
+    @Override
+    public void addProviderListener(ProviderListener listener) {
+        listeners.add(listener);
+    }
+
+    private List<ServiceInstance> getInstances(String serviceName) {
+        List<ServiceInstance> instances = serviceCache.get(serviceName);
+        return instances != null ? instances : loadInstances(serviceName, false);
+    }
+
+    /**
+     * 从zookeeper读出服务的全部实例，放进缓存
+     * 同时在服务节点上注册子节点监听、在每个地址节点上注册数据监听，提供者上下线或者改了权重时重新读取
+     * @param reload 是否是监听触发的重新读取，否则只在缓存还没有时读取
+     */
+    private List<ServiceInstance> loadInstances(String serviceName, boolean reload) {
+        synchronized (loadLocks.computeIfAbsent(serviceName, k -> new Object())) {
+            List<ServiceInstance> cached = serviceCache.get(serviceName);
+            if (cached != null && !reload) {
+                return cached;
+            }
+            String servicePath = REGISTRY_PATH + "/" + serviceName;
+            Watcher watcher = watchers.computeIfAbsent(serviceName, this::newWatcher);
+            List<ServiceInstance> instances = new ArrayList<>();
+            try {
+                List<String> addressList = zk.getChildren(servicePath, watcher);
+                for (String addressNode : addressList) {
+                    // 获取临时节点中的数据，解析出地址、权重和注册时间
+                    try {
+                        String data = new String(zk.getData(servicePath + "/" + addressNode, watcher, new Stat()),
+                                StandardCharsets.UTF_8);
+                        instances.add(ServiceInstance.parse(addressNode, data));
+                    } catch (KeeperException.NoNodeException e) {
+                        // 节点在getChildren之后刚好下线了，子节点监听会再触发一次
+                    } catch (RuntimeException e) {
+                        // 数据格式不对的节点(比如别的程序写的)只跳过它自己，不影响这个服务的其他提供者
+                        logger.warn("忽略服务 {} 下无法解析的节点 {}", serviceName, addressNode, e);
+                    }
+                }
+            } catch (KeeperException.NoNodeException e) {
+                logger.warn("服务 {} 还没有提供者注册", serviceName);
+                // 路径不存在时getChildren不会留下监听，改为在exists上监听节点创建，第一个提供者注册后重新读取
+                try {
+                    if (zk.exists(servicePath, watcher) != null) {
+                        // 两次查询之间刚好被创建，不会再收到NodeCreated，直接重读
+                        return loadInstances(serviceName, true);
+                    }
+                } catch (KeeperException | InterruptedException ex) {
+                    logger.error("监听服务 {} 的节点创建时发生错误", serviceName, ex);
+                    // 没有监听就不缓存空结果，下次调用再试
+                    return cached != null ? cached : Collections.unmodifiableList(instances);
+                }
+            } catch (KeeperException | InterruptedException e) {
+                logger.error("获取服务 {} 的地址列表时发生错误", serviceName, e);
+                // 读取失败不覆盖缓存，没有缓存时下次调用再试
+                return cached != null ? cached : Collections.unmodifiableList(instances);
+            }
+            List<ServiceInstance> current = Collections.unmodifiableList(instances);
+            serviceCache.put(serviceName, current);
+            if (snapshot != null && !current.equals(cached)) {
+                snapshot.save(serviceCache);
+            }
+            if (cached != null) {
+                notifyRemoved(cached);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * 同一个服务始终用同一个监听器对象，zookeeper按对象去重，重复读取不会让同一路径上的监听越积越多
+     */
+    private Watcher newWatcher(String serviceName) {
+        return event -> {
+            if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged
+                    || event.getType() == Watcher.Event.EventType.NodeDataChanged
+                    || event.getType() == Watcher.Event.EventType.NodeCreated) {
+                logger.info("服务 {} 的提供者发生变化", serviceName);
+                loadInstances(serviceName, true);
             }
+        };
+    }
 
-            loadBalancer = new ConsistentHashLoadBalancer(zk, servicePath);
-
-            // 如果是随机或轮询
-            if (loadBalancer instanceof RandomLoadBalancer || loadBalancer instanceof RoundRobinLoadBalancer) {
-                // 获取zk临时节点中第一个节点的path
-                // addressNode = addressList.get(0);
-                // 负载均衡获取服务地址
-                addressNode = loadBalancer.select(addressList);
-                logger.info("负载均衡获得地址节点: {}", addressNode);
-                // 获取临时节点中的数据
-                // 将节点中的bytes数据转换为String
-                address = new String(zk.getData(servicePath + "/" + addressNode, true, new Stat()));
-                logger.info("服务地址为 {}", address);
-                // 分离IP和端口
-                String[] split = address.split(":");
-                // 返回待请求的服务器地址
-                return new InetSocketAddress(split[0], Integer.parseInt(split[1]));
-            } else {
-                // 一致性哈希负载均衡
-                // TODO hashcode需要重新设计，服务器是用地址path来计算而不是ip，因为都在本机上，所以hashcode太过于相近
-                // TODO 导致客户端的hashcode总是处于环的最左或最右
-                addressNode = loadBalancer.select(addressList, rpcClient.hashCode());
-                logger.info("一致性哈希负载均衡获得地址节点路径: {}", addressNode);
-                address = new String(zk.getData(servicePath + "/" + addressNode, true, new Stat()));
-                logger.info("服务地址为 {}", address);
-                String[] split = address.split(":");
-                return new InetSocketAddress(split[0], Integer.parseInt(split[1]));
+    /**
+     * 旧列表里的地址如果已经不在任何服务的当前列表里，说明这个提供者下线了，通知监听器(关闭到它的连接等)
+     */
+    private void notifyRemoved(List<ServiceInstance> previous) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Set<InetSocketAddress> removed = new HashSet<>();
+        for (ServiceInstance instance : previous) {
+            removed.add(instance.getAddress());
+        }
+        for (List<ServiceInstance> instances : serviceCache.values()) {
+            for (ServiceInstance instance : instances) {
+                removed.remove(instance.getAddress());
+            }
+        }
+        for (InetSocketAddress address : removed) {
+            logger.info("服务提供者 {} 已下线", address);
+            for (ProviderListener listener : listeners) {
+                listener.onRemoved(address);
             }
-        } catch (Exception e) {
-            logger.error("获取服务时发生错误:", e);
-            System.exit(0);
         }
-        return null;
     }
 }
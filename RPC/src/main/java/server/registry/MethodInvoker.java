@@ -0,0 +1,45 @@
+package server.registry;
+
+import lombok.Getter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * 一个服务方法的调用器，注册服务时预先生成
+ * 方法句柄已经绑定了服务实例，并且改成了 (Object[]) -> Object 的形式，调用时不再查找方法、不再做访问检查
+ */
+@Getter
+public class MethodInvoker {
+
+    // 服务接口
+    private final Class<?> serviceClass;
+
+    // 接口上声明的方法，读注解用
+    private final Method method;
+
+    private final Object service;
+
+    private final MethodHandle handle;
+
+    public MethodInvoker(Class<?> serviceClass, Method method, Object service) throws IllegalAccessException {
+        this.serviceClass = serviceClass;
+        this.method = method;
+        this.service = service;
+        // 接口或者实现类不是public的时候，publicLookup拿不到句柄
+        method.setAccessible(true);
+        this.handle = MethodHandles.lookup().unreflect(method)
+                .bindTo(service)
+                .asSpreader(Object[].class, method.getParameterCount())
+                .asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    /**
+     * 调用服务方法，业务方法抛出的异常原样抛出
+     */
+    public Object invoke(Object[] args) throws Throwable {
+        return (Object) handle.invokeExact(args);
+    }
+}
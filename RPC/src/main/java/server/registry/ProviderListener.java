@@ -0,0 +1,14 @@
+package server.registry;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 服务提供者变化的监听器
+ */
+public interface ProviderListener {
+
+    /**
+     * 提供者已经不在任何服务的地址列表里了
+     */
+    void onRemoved(InetSocketAddress address);
+}
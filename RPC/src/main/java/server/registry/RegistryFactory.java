@@ -0,0 +1,49 @@
+package server.registry;
+
+import client.lb.LoadBalancer;
+import common.config.RpcConfig;
+import server.registry.Impl.LocalRegistryFactory;
+import server.registry.Impl.ZkRegistryFactory;
+
+import java.util.ServiceLoader;
+
+/**
+ * 注册中心的扩展点，按配置rpc.registry选择实现
+ * 内置zookeeper(默认)和local(本机多进程共享的内存映射文件)
+ * 第三方实现可以通过META-INF/services/server.registry.RegistryFactory用ServiceLoader加载
+ */
+public interface RegistryFactory {
+
+    /**
+     * 配置里使用的名字
+     */
+    String getName();
+
+    /**
+     * 服务端使用，只需要注册服务
+     */
+    ServiceRegistry createServerRegistry();
+
+    /**
+     * 客户端使用，按负载均衡策略查找服务
+     */
+    ServiceRegistry createClientRegistry(LoadBalancer loadBalancer);
+
+    /**
+     * 返回配置指定的注册中心实现
+     */
+    static RegistryFactory get() {
+        String name = RpcConfig.get("rpc.registry", "zookeeper");
+        if ("zookeeper".equals(name)) {
+            return new ZkRegistryFactory();
+        } else if ("local".equals(name)) {
+            return new LocalRegistryFactory();
+        }
+        for (RegistryFactory factory : ServiceLoader.load(RegistryFactory.class)) {
+            if (factory.getName().equals(name)) {
+                return factory;
+            }
+        }
+        throw new IllegalArgumentException("未找到注册中心实现: " + name);
+    }
+}
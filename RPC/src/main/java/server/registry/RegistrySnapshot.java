@@ -0,0 +1,133 @@
+package server.registry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 注册中心地址表的本地快照
+ * 客户端启动时先从快照加载，不用等注册中心应答就能开始路由；注册中心不可用时也能按最后一次的数据继续工作
+ *
+ * 文件格式(二进制)：魔数 | 版本 | 服务数 | { 服务名 | 实例数 | { 节点名 | 主机 | 端口 | 权重 | 注册时间 | 参数数 | { 键 | 值 } } }
+ * 版本1没有附加参数，仍然可以读取
+ * 写入时先写临时文件再改名，进程中途退出也不会留下写了一半的快照
+ * 临时文件名每次随机生成，多个进程共用同一个快照文件时不会互相覆盖写了一半的临时文件
+ */
+public class RegistrySnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegistrySnapshot.class);
+
+    private static final int MAGIC = 0x52504353;
+
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    public RegistrySnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 读取快照，文件不存在或者损坏时返回空表
+     */
+    public Map<String, List<ServiceInstance>> load() {
+        Map<String, List<ServiceInstance>> services = new HashMap<>();
+        if (!file.isFile()) {
+            return services;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version;
+            if (in.readInt() != MAGIC || (version = in.readInt()) < 1 || version > VERSION) {
+                logger.warn("注册中心快照 {} 格式不对，忽略", file);
+                return services;
+            }
+            int serviceCount = in.readInt();
+            for (int i = 0; i < serviceCount; i++) {
+                String serviceName = in.readUTF();
+                int instanceCount = in.readInt();
+                List<ServiceInstance> instances = new ArrayList<>(instanceCount);
+                for (int j = 0; j < instanceCount; j++) {
+                    String node = in.readUTF();
+                    String host = in.readUTF();
+                    int port = in.readInt();
+                    int weight = in.readInt();
+                    long timestamp = in.readLong();
+                    Map<String, String> params = new LinkedHashMap<>();
+                    int paramCount = version >= 2 ? in.readInt() : 0;
+                    for (int k = 0; k < paramCount; k++) {
+                        params.put(in.readUTF(), in.readUTF());
+                    }
+                    instances.add(new ServiceInstance(node, new InetSocketAddress(host, port), weight, timestamp,
+                            params.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(params)));
+                }
+                services.put(serviceName, Collections.unmodifiableList(instances));
+            }
+            logger.info("从快照 {} 加载了 {} 个服务", file, services.size());
+        } catch (IOException e) {
+            logger.warn("读取注册中心快照 {} 失败，忽略", file, e);
+            services.clear();
+        }
+        return services;
+    }
+
+    /**
+     * 保存快照，失败只记日志，不影响调用
+     */
+    public synchronized void save(Map<String, List<ServiceInstance>> services) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        Path temp = null;
+        try {
+            if (!parent.isDirectory()) {
+                Files.createDirectories(parent.toPath());
+            }
+            temp = Files.createTempFile(parent.toPath(), file.getName() + ".", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(services.size());
+                for (Map.Entry<String, List<ServiceInstance>> entry : services.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (ServiceInstance instance : entry.getValue()) {
+                        out.writeUTF(instance.getNode());
+                        out.writeUTF(instance.getAddress().getHostString());
+                        out.writeInt(instance.getAddress().getPort());
+                        out.writeInt(instance.getWeight());
+                        out.writeLong(instance.getTimestamp());
+                        out.writeInt(instance.getParams().size());
+                        for (Map.Entry<String, String> param : instance.getParams().entrySet()) {
+                            out.writeUTF(param.getKey());
+                            out.writeUTF(param.getValue());
+                        }
+                    }
+                }
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("保存注册中心快照 {} 失败", file, e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
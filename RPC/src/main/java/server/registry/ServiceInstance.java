@@ -0,0 +1,114 @@
+package server.registry;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 注册中心里的一个服务提供者
+ * 注册中心在成员变化时整体替换实例列表，实例本身不可变，负载均衡器可以放心地按列表缓存计算结果
+ *
+ * 注册到zookeeper的节点数据格式为 host:port:weight=100&timestamp=1700000000000&serializers=0,1&...
+ * 参数放在第二个冒号后面：老版本客户端按address.split(":")取前两段当主机和端口，后面的参数直接被忽略
+ * 老版本提供者只写了host:port，解析时按默认权重、没有启动时间处理
+ * 除weight和timestamp以外的参数原样保存在params里，见ServiceMetadata，参数的键和值里不能有&、=和:
+ *
+ * 升级顺序：提供者和客户端谁先升级都可以，老客户端能读新格式，新客户端能读老格式
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+@EqualsAndHashCode
+public class ServiceInstance {
+
+    public static final int DEFAULT_WEIGHT = 100;
+
+    // 注册中心里的节点名，比如zookeeper的address-0000000001
+    private final String node;
+
+    // 服务地址
+    private final InetSocketAddress address;
+
+    // 权重，机器配置越好权重越大
+    private final int weight;
+
+    // 提供者的注册时间，用来计算预热期，0表示不预热
+    private final long timestamp;
+
+    // 其余的附加参数，不可变
+    private final Map<String, String> params;
+
+    public ServiceInstance(String node, InetSocketAddress address) {
+        this(node, address, DEFAULT_WEIGHT, 0);
+    }
+
+    public ServiceInstance(String node, InetSocketAddress address, int weight, long timestamp) {
+        this(node, address, weight, timestamp, Collections.emptyMap());
+    }
+
+    public String getParam(String key) {
+        return params.get(key);
+    }
+
+    /**
+     * ip:port形式的地址串，用来计算哈希
+     */
+    public String getAddressString() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * 生成注册到注册中心的节点数据
+     */
+    public static String toData(String host, int port, int weight, long timestamp) {
+        return String.format("%s:%d:weight=%d&timestamp=%d", host, port, weight, timestamp);
+    }
+
+    public static String toData(String host, int port, int weight, long timestamp, Map<String, String> params) {
+        StringBuilder sb = new StringBuilder(toData(host, port, weight, timestamp));
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            sb.append('&').append(param.getKey()).append('=').append(param.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 解析注册中心的节点数据
+     */
+    public static ServiceInstance parse(String node, String data) {
+        // 第二个冒号后面是参数
+        int first = data.indexOf(':');
+        int query = first < 0 ? -1 : data.indexOf(':', first + 1);
+        String address = query < 0 ? data : data.substring(0, query);
+        int colon = address.lastIndexOf(':');
+        int weight = DEFAULT_WEIGHT;
+        long timestamp = 0;
+        Map<String, String> params = new LinkedHashMap<>();
+        if (query >= 0) {
+            for (String param : data.substring(query + 1).split("&")) {
+                int eq = param.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String key = param.substring(0, eq);
+                String value = param.substring(eq + 1);
+                if ("weight".equals(key)) {
+                    weight = Integer.parseInt(value);
+                } else if ("timestamp".equals(key)) {
+                    timestamp = Long.parseLong(value);
+                } else {
+                    params.put(key, value);
+                }
+            }
+        }
+        return new ServiceInstance(node,
+                new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))),
+                weight, timestamp, params.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(params));
+    }
+}
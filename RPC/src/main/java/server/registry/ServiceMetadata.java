@@ -0,0 +1,47 @@
+package server.registry;
+
+import common.config.ProtocolVersion;
+import common.serializer.SerializerRegistry;
+import common.util.MethodSignatures;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 服务端注册到注册中心的附加信息，作为节点数据的查询参数保存
+ *  - serializers：支持的序列化器编号，逗号分隔
+ *  - version：编码器使用的协议版本
+ *  - methods：服务接口方法表的哈希，见MethodSignatures
+ * 权重和注册时间由ServiceInstance单独处理
+ */
+public class ServiceMetadata {
+
+    public static final String SERIALIZERS = "serializers";
+
+    public static final String VERSION = "version";
+
+    public static final String METHODS = "methods";
+
+    /**
+     * 和具体服务无关的部分
+     */
+    public static Map<String, String> common() {
+        Map<String, String> params = new LinkedHashMap<>();
+        StringBuilder serializers = new StringBuilder();
+        for (int code : SerializerRegistry.codes()) {
+            if (serializers.length() > 0) {
+                serializers.append(',');
+            }
+            serializers.append(code);
+        }
+        params.put(SERIALIZERS, serializers.toString());
+        params.put(VERSION, String.valueOf(ProtocolVersion.DEFAULT.getCode()));
+        return params;
+    }
+
+    public static Map<String, String> of(Class<?> serviceClass) {
+        Map<String, String> params = common();
+        params.put(METHODS, MethodSignatures.hash(serviceClass));
+        return params;
+    }
+}
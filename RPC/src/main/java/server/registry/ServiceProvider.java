@@ -2,6 +2,8 @@ package server.registry;
 
 import common.config.RpcException;
 
+import java.util.Collection;
+
 // 服务容器，保存本地服务的信息
 public interface ServiceProvider {
 
@@ -10,4 +12,16 @@ public interface ServiceProvider {
 
     // 获取服务
     Object getService(String serviceName) throws RpcException;
+
+    // 获取服务方法的调用器，找不到服务或者方法时抛出RpcException
+    MethodInvoker getInvoker(String serviceName, String methodName, Class<?>[] paramTypes) throws RpcException;
+
+    // 按握手下发的方法编号获取调用器，编号不存在时抛出RpcException
+    MethodInvoker getInvoker(int methodId) throws RpcException;
+
+    // 全部方法的键(接口名#方法名(参数类型))，下标+1就是方法编号，只在末尾追加
+    String[] getMethodKeys();
+
+    // 已注册的全部服务接口
+    Collection<Class<?>> getServiceInterfaces();
 }
@@ -1,6 +1,10 @@
 package server.registry;
 
+import common.config.RpcException;
+import common.reqeust.RpcRequest;
+
 import java.net.InetSocketAddress;
+import java.util.Collection;
 import java.util.List;
 
 public interface ServiceRegistry {
@@ -8,12 +12,33 @@ public interface ServiceRegistry {
     /**
      * 注册服务
      */
-    void register(String serviceName, InetSocketAddress inetSocketAddress);
+    void register(String serviceName, InetSocketAddress inetSocketAddress) throws RpcException;
+
+    /**
+     * 批量注册服务，节点数据里带上每个接口的方法表哈希等元数据
+     * 服务端导出很多接口时，启动耗时不随接口数增长
+     */
+    void registerAll(Collection<Class<?>> serviceClasses, InetSocketAddress inetSocketAddress) throws RpcException;
 
     /**
      * 拉取服务
      */
     InetSocketAddress lookupService(String serviceName);
 
+    /**
+     * 按请求拉取服务，负载均衡器可以根据请求内容(比如参数)来选择提供者
+     */
+    InetSocketAddress lookupService(RpcRequest rpcRequest);
+
     List<String> getServiceList(String serviceName);
+
+    /**
+     * 拉取服务的所有地址，客户端用来预热连接
+     */
+    List<InetSocketAddress> lookupAllServices(String serviceName);
+
+    /**
+     * 监听服务提供者下线，客户端用来关闭到下线节点的连接
+     */
+    void addProviderListener(ProviderListener listener);
 }
@@ -1,6 +1,10 @@
 package server.service;
 
+import common.annotation.Oneway;
+
 public interface ServiceB extends Service{
 
+    // 只上报信息，不需要等服务端执行完
+    @Oneway
     void getInfo(HelloObjectB object);
 }
@@ -12,8 +12,8 @@ public class NettyTestServer2 {
         ServiceProvider registry = new DefaultServiceProvider();    // 创建注册中心
         registry.register(serviceA2);    // 注册服务
         NettyServer server = new NettyServer(registry, 11000); // 将注册中心绑定到服务器
-        // 注册服务到本地及ZooKeeper
-        server.publishService(serviceA2, ServiceA.class);
+        // 服务容器里的全部服务一次性注册到ZooKeeper
+        server.publishServices();
         // server.publishService(serviceB2, ServiceB.class);
         server.start(); // 启动服务器
     }
@@ -12,8 +12,8 @@ public class NettyTestServer3 {
         ServiceProvider registry = new DefaultServiceProvider();    // 创建注册中心
         registry.register(serviceA3);    // 注册服务
         NettyServer server = new NettyServer(registry, 12000); // 将注册中心绑定到服务器
-        // 注册服务到本地及ZooKeeper
-        server.publishService(serviceA3, ServiceA.class);
+        // 服务容器里的全部服务一次性注册到ZooKeeper
+        server.publishServices();
         // server.publishService(serviceB3, ServiceB.class);
         server.start(); // 启动服务器
     }
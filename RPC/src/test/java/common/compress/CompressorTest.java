@@ -0,0 +1,64 @@
+package common.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.compression.DecompressionException;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 压缩器往返测试，覆盖超过Snappy单块上限(32767字节)和64KB的消息体
+ */
+public class CompressorTest {
+
+    private static final int[] SIZES = {0, 1, 1000, 30000, 32767, 32768, 40000, 70000, 200000, 1000000};
+
+    @Test
+    public void snappyRoundTrip() {
+        for (int size : SIZES) {
+            roundTrip(Compressor.getByCode(CompressType.SNAPPY.getCode()), size);
+        }
+    }
+
+    @Test
+    public void deflateRoundTrip() {
+        for (int size : SIZES) {
+            roundTrip(Compressor.getByCode(CompressType.DEFLATE.getCode()), size);
+        }
+    }
+
+    @Test(expected = DecompressionException.class)
+    public void snappyRejectsOversizedOutput() {
+        Compressor compressor = Compressor.getByCode(CompressType.SNAPPY.getCode());
+        ByteBuf compressed = Unpooled.buffer();
+        compressor.compress(Unpooled.wrappedBuffer(body(70000)), compressed);
+        compressor.decompress(compressed, Unpooled.buffer(), 65536);
+    }
+
+    private static void roundTrip(Compressor compressor, int size) {
+        byte[] body = body(size);
+        // 堆外内存走和编码器一样的路径
+        ByteBuf in = Unpooled.directBuffer(size).writeBytes(body);
+        ByteBuf compressed = Unpooled.buffer();
+        compressor.compress(in, compressed);
+        assertEquals("压缩后输入应该读完, size=" + size, 0, in.readableBytes());
+        ByteBuf out = Unpooled.buffer();
+        compressor.decompress(compressed, out, size);
+        assertEquals("size=" + size, Unpooled.wrappedBuffer(body), out);
+    }
+
+    /**
+     * 半随机半重复的数据，既能压缩又不会退化成全是重复
+     */
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            body[i] = i % 64 < 32 ? (byte) random.nextInt(16) : (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+}